@@ -0,0 +1,364 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Class providing a benchmark harness for KNN, Naive Bayes, K-Means and the input loaders
+// Every benchmark runs on synthetic data generated from the parameters, is warmed up so that the JIT has compiled the
+// measured code, and is then timed over several iterations. The results can be recorded as a baseline file, and later
+// runs with the same parameters compared against it. The same operations are exposed through operations() for the
+// JMH harness in the jmh folder, which adds forked JVMs and per-fork statistics
+public class Benchmark {
+    private static volatile long sink;  // Consumes benchmark results so the JIT cannot drop the measured work
+
+    // Class holding the parameters of the synthetic data and of the measurement
+    private static class Params {
+        private int rows = 20000;        // Training rows, and K-Means input rows
+        private int queries = 1000;      // Test rows predicted by the KNN and Naive Bayes benchmarks
+        private int dims = 8;            // Features per row
+        private int k = 5;               // Nearest neighbours used by KNN
+        private int classes = 4;         // Number of labels, each drawn around its own centre
+        private int clusters = 8;        // Number of K-Means centroids
+        private int threads = 1;         // Threads passed to every parallel code path
+        private int warmup = 5;          // Untimed runs before measuring
+        private int iterations = 10;     // Timed runs
+        private long seed = 42;          // Random seed of the synthetic data
+        private KNN.SearchMode mode = KNN.SearchMode.AUTO;  // KNN search mode
+
+        // Method to describe the parameters in one line, used to check that a baseline is comparable
+        public String describe() {
+            return "rows=" + rows + " queries=" + queries + " dims=" + dims + " k=" + k + " classes=" + classes
+                    + " clusters=" + clusters + " threads=" + threads + " mode=" + mode.name().toLowerCase()
+                    + " seed=" + seed + " kernel=" + Distance.EUCLIDEAN_SQUARED.getKernel();
+        }
+    }
+
+    // Interface for the operation timed by a benchmark; the returned value is fed to the sink
+    private interface Operation {
+        long run() throws IOException;
+    }
+
+    // Class holding a prepared benchmark: its operation and the rows or queries one run handles
+    private static class Task {
+        private final Operation operation;
+        private final int items;
+
+        // Constructor to initialize a task
+        public Task(Operation operation, int items) {
+            this.operation = operation;
+            this.items = items;
+        }
+    }
+
+    // Class holding the timings of one benchmark
+    private static class Result {
+        private final String name;
+        private final double meanNanos;   // Mean time of one run
+        private final double stdevNanos;  // Standard deviation of the run times
+        private final int items;          // Rows or queries handled by one run
+
+        // Constructor to initialize a result
+        public Result(String name, double meanNanos, double stdevNanos, int items) {
+            this.name = name;
+            this.meanNanos = meanNanos;
+            this.stdevNanos = stdevNanos;
+            this.items = items;
+        }
+    }
+
+    // Main method to parse the arguments, run the selected benchmarks and record or compare a baseline
+    public static void main(String[] args) throws IOException {
+        Params params = new Params();
+        String only = "";
+        String recordFile = "";
+        String compareFile = "";
+        double threshold = 5;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-rows" -> params.rows = Integer.parseInt(args[++i]);
+                    case "-queries" -> params.queries = Integer.parseInt(args[++i]);
+                    case "-dims" -> params.dims = Integer.parseInt(args[++i]);
+                    case "-k" -> params.k = Integer.parseInt(args[++i]);
+                    case "-classes" -> params.classes = Integer.parseInt(args[++i]);
+                    case "-clusters" -> params.clusters = Integer.parseInt(args[++i]);
+                    case "-threads" -> params.threads = Integer.parseInt(args[++i]);
+                    case "-warmup" -> params.warmup = Integer.parseInt(args[++i]);
+                    case "-iterations" -> params.iterations = Integer.parseInt(args[++i]);
+                    case "-seed" -> params.seed = Long.parseLong(args[++i]);
+                    case "-index" -> params.mode = KNN.SearchMode.valueOf(args[++i].toUpperCase());
+                    case "-only" -> only = args[++i];
+                    case "-record" -> recordFile = args[++i];
+                    case "-compare" -> compareFile = args[++i];
+                    case "-threshold" -> threshold = Double.parseDouble(args[++i]);
+                    default -> throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("One or more incorrect arguments passed. Check README for more details.");
+            System.exit(0);
+        }
+        if (params.rows < params.clusters || params.rows < 1 || params.queries < 1 || params.dims < 1
+                || params.k < 1 || params.classes < 1 || params.clusters < 1 || params.iterations < 1) {
+            System.out.println("Benchmark sizes must be positive, with at least as many rows as clusters.");
+            System.exit(0);
+        }
+
+        System.out.println("# " + params.describe());
+        List<Result> results = run(params, only.isEmpty() ? new String[0] : only.split(","));
+        for (Result result : results) {
+            System.out.printf("%-26s %12.3f ms/op  +- %8.3f  %10.1f ns/item%n", result.name, result.meanNanos / 1e6,
+                    result.stdevNanos / 1e6, result.meanNanos / result.items);
+        }
+        if (!compareFile.isEmpty()) compare(results, params, compareFile, threshold);
+        if (!recordFile.isEmpty()) {
+            record(results, params, recordFile);
+            System.out.println("Baseline written to " + recordFile);
+        }
+    }
+
+    // Method to generate the synthetic data and run every benchmark whose name starts with one of the selections
+    private static List<Result> run(Params params, String[] selections) throws IOException {
+        List<Path> temporaries = new ArrayList<>();
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Map.Entry<String, Task> entry : prepare(params, selections, temporaries).entrySet()) {
+                measure(results, params, entry.getKey(), entry.getValue());
+            }
+        } finally {
+            for (Path file : temporaries) Files.deleteIfExists(file);
+        }
+        return results;
+    }
+
+    // Method to prepare the data of one benchmark for an external harness and return its operation, which returns a
+    // value the harness must consume; temporary input files are deleted when the JVM exits
+    // Only JDK types appear in the signature, so classes in a named package can call it reflectively
+    public static Callable<Long> operation(String name, int rows, int queries, int dims, int threads, long seed)
+            throws IOException {
+        Params params = new Params();
+        params.rows = rows;
+        params.queries = queries;
+        params.dims = dims;
+        params.threads = threads;
+        params.seed = seed;
+        List<Path> temporaries = new ArrayList<>();
+        Task task = prepare(params, new String[]{name}, temporaries).get(name);
+        for (Path file : temporaries) file.toFile().deleteOnExit();
+        if (task == null) throw new IllegalArgumentException("Unknown benchmark " + name);
+        return task.operation::run;
+    }
+
+    // Helper method to generate the synthetic data and build every selected operation, in the order they are reported
+    // Temporary input files are added to temporaries for the caller to delete
+    private static Map<String, Task> prepare(Params params, String[] selections, List<Path> temporaries)
+            throws IOException {
+        Map<String, Task> operations = new LinkedHashMap<>();
+        Random random = new Random(params.seed);
+        double[][] centres = new double[params.classes][params.dims];
+        for (double[] centre : centres) {
+            for (int j = 0; j < params.dims; j++) centre[j] = random.nextInt(20);
+        }
+        Dataset train = generate(params.rows, params, centres, random);
+        Dataset test = recombine(train, params.queries, random);
+
+        // KNN
+        if (selected("knn", selections)) {
+            KNN knn = new KNN(params.k, params.mode);
+            knn.train(train);
+            double[][] queries = new double[test.size()][];
+            for (int i = 0; i < queries.length; i++) queries[i] = test.getRow(i);
+            add(operations, selections, "knn.predict", queries.length, () -> {
+                long hash = 0;
+                for (double[] query : queries) hash += knn.predict(query).hashCode();
+                return hash;
+            });
+            add(operations, selections, "knn.predictOnData", test.size(),
+                    () -> consume(knn.predictOnData(test, params.threads)));
+        }
+
+        // Naive Bayes
+        if (selected("nb", selections)) {
+            add(operations, selections, "nb.train", train.size(), () -> {
+                NaiveBayes naiveBayes = new NaiveBayes(1, false);
+                naiveBayes.train(train, params.threads);
+                return naiveBayes.getNumFeatures();
+            });
+            NaiveBayes naiveBayes = new NaiveBayes(1, false);
+            naiveBayes.train(train, params.threads);
+            add(operations, selections, "nb.predictOnData", test.size(),
+                    () -> consume(naiveBayes.predictOnData(test, params.threads)));
+            add(operations, selections, "nb.gaussian.train", train.size(), () -> {
+                NaiveBayes gaussian = new NaiveBayes(1, false, true, NaiveBayes.FeatureModel.GAUSSIAN);
+                gaussian.train(train, params.threads);
+                return gaussian.getNumFeatures();
+            });
+            NaiveBayes gaussian = new NaiveBayes(1, false, true, NaiveBayes.FeatureModel.GAUSSIAN);
+            gaussian.train(train, params.threads);
+            add(operations, selections, "nb.gaussian.predictOnData", test.size(),
+                    () -> consume(gaussian.predictOnData(test, params.threads)));
+        }
+
+        // K-Means: one Lloyd iteration (assignment and centroid update) from the same starting centroids each run,
+        // which is the per-iteration cost of runKMeans without its printing
+        if (selected("kmeans", selections)) {
+            int[] assignment = new int[train.size()];
+            for (Distance distance : new Distance[]{Distance.MANHATTAN, Distance.EUCLIDEAN_SQUARED}) {
+                add(operations, selections, "kmeans.iteration." + distance.getName(), train.size(), () -> {
+                    double[][] centroids = new double[params.clusters][];
+                    for (int i = 0; i < centroids.length; i++) centroids[i] = train.getRow(i);
+                    KMeans.cluster(train, centroids, distance, assignment, 1, params.threads);
+                    return assignment[assignment.length - 1];
+                });
+            }
+        }
+
+        // Input loaders, reading synthetic files written once to temporary files
+        if (selected("load", selections)) {
+            Path csvFile = writeTemporary(train, false, temporaries);
+            Path kMeansFile = writeTemporary(train, true, temporaries);
+            add(operations, selections, "load.csv", train.size(),
+                    () -> CsvLoader.readCsv(csvFile.toString(), params.threads).size());
+            add(operations, selections, "load.kmeans", train.size(),
+                    () -> CsvLoader.readKMeans(kMeansFile.toString(), params.threads).size());
+        }
+        return operations;
+    }
+
+    // Helper method to generate rows of integer features scattered around the centre of each row's class
+    // Integer features keep the data valid for Naive Bayes, which counts distinct values, and for K-Means input files
+    private static Dataset generate(int numRows, Params params, double[][] centres, Random random) {
+        Dataset data = new Dataset(params.dims, numRows);
+        double[] row = new double[params.dims];
+        for (int i = 0; i < numRows; i++) {
+            int label = random.nextInt(params.classes);
+            for (int j = 0; j < params.dims; j++) {
+                row[j] = Math.round(centres[label][j] + random.nextGaussian() * 3);
+            }
+            data.addRow(row, "L" + label);
+        }
+        return data;
+    }
+
+    // Helper method to build unseen rows whose every feature value comes from a training row of the same class
+    // Naive Bayes warns about feature values missing from its training data, which would flood the output
+    private static Dataset recombine(Dataset train, int numRows, Random random) {
+        List<List<Integer>> rowsByLabel = new ArrayList<>();
+        for (int i = 0; i < train.getNumLabels(); i++) rowsByLabel.add(new ArrayList<>());
+        for (int row = 0; row < train.size(); row++) rowsByLabel.get(train.getLabelCode(row)).add(row);
+
+        Dataset data = new Dataset(train.getNumFeatures(), numRows);
+        double[] values = new double[train.getNumFeatures()];
+        for (int i = 0; i < numRows; i++) {
+            int label = train.getLabelCode(random.nextInt(train.size()));
+            List<Integer> rows = rowsByLabel.get(label);
+            for (int j = 0; j < values.length; j++) {
+                values[j] = train.get(rows.get(random.nextInt(rows.size())), j);
+            }
+            data.addRow(values, train.getLabelName(label));
+        }
+        return data;
+    }
+
+    // Helper method to write a dataset to a temporary input file, as a K-Means file or a KNN/Naive Bayes file
+    private static Path writeTemporary(Dataset data, boolean kMeans, List<Path> temporaries) throws IOException {
+        Path file = Files.createTempFile("benchmark", ".txt");
+        temporaries.add(file);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < data.size(); i++) {
+                StringBuilder line = new StringBuilder();
+                for (double value : data.getRow(i)) {
+                    line.append((long) value).append(kMeans ? " " : ",");
+                }
+                line.append(kMeans ? "N" + i : data.getLabel(i));
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        }
+        return file;
+    }
+
+    // Helper method to check whether a benchmark name matches the selections (no selections match everything)
+    private static boolean selected(String name, String[] selections) {
+        if (selections.length == 0) return true;
+        for (String selection : selections) {
+            if (name.startsWith(selection) || selection.startsWith(name)) return true;
+        }
+        return false;
+    }
+
+    // Helper method to add an operation to the prepared benchmarks if its name is selected
+    private static void add(Map<String, Task> operations, String[] selections, String name, int items,
+                            Operation operation) {
+        if (selected(name, selections)) operations.put(name, new Task(operation, items));
+    }
+
+    // Helper method to warm up and time one benchmark, adding its result to the list
+    private static void measure(List<Result> results, Params params, String name, Task task) throws IOException {
+        Operation operation = task.operation;
+        for (int i = 0; i < params.warmup; i++) sink += operation.run();
+        double[] times = new double[params.iterations];
+        for (int i = 0; i < params.iterations; i++) {
+            long start = System.nanoTime();
+            sink += operation.run();
+            times[i] = System.nanoTime() - start;
+        }
+        double mean = 0;
+        for (double time : times) mean += time;
+        mean /= times.length;
+        double variance = 0;
+        for (double time : times) variance += (time - mean) * (time - mean);
+        double stdev = times.length > 1 ? Math.sqrt(variance / (times.length - 1)) : 0;
+        results.add(new Result(name, mean, stdev, task.items));
+    }
+
+    // Helper method to fold a list of predictions into a value for the sink
+    private static long consume(List<String> predictions) {
+        long hash = predictions.size();
+        for (String prediction : predictions) hash += prediction.hashCode();
+        return hash;
+    }
+
+    // Method to write the results as a baseline file: the parameter line, then one "name mean stdev" line each
+    private static void record(List<Result> results, Params params, String filename) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(filename), StandardCharsets.UTF_8))) {
+            writer.println("# " + params.describe());
+            for (Result result : results) {
+                writer.println(result.name + " " + result.meanNanos + " " + result.stdevNanos);
+            }
+        }
+    }
+
+    // Method to compare the results against a baseline file, marking changes larger than threshold percent
+    private static void compare(List<Result> results, Params params, String filename, double threshold)
+            throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8);
+        Map<String, Double> baseline = new HashMap<>();
+        for (String line : lines) {
+            if (line.startsWith("#")) {
+                if (!line.equals("# " + params.describe())) {
+                    System.out.println("Warning: baseline was recorded with different parameters (" + line.substring(2)
+                            + ")");
+                }
+                continue;
+            }
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length >= 2) baseline.put(fields[0], Double.parseDouble(fields[1]));
+        }
+
+        System.out.println("Compared with " + filename + ":");
+        for (Result result : results) {
+            Double before = baseline.get(result.name);
+            if (before == null) {
+                System.out.printf("%-26s %12s%n", result.name, "no baseline");
+                continue;
+            }
+            double change = 100.0 * (result.meanNanos - before) / before;
+            String verdict = change > threshold ? "slower" : change < -threshold ? "faster" : "unchanged";
+            System.out.printf("%-26s %12.3f -> %12.3f ms/op  %+7.1f%%  %s%n", result.name, before / 1e6,
+                    result.meanNanos / 1e6, change, verdict);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+// Class for exact squared Euclidean KNN search of many queries at a time, tiling queries and training rows so that
+// a block of training rows is read from memory once per block of queries instead of once per query
+// Within a tile, distances come from ||q||^2 + ||x||^2 - 2 q.x with the row norms computed once, so the inner loop is
+// a dot product that reuses each query value against four rows. The expansion loses precision when the vectors are
+// long compared with the distance between them, so it only filters: a row whose expanded distance, less a bound on
+// its rounding error, could still beat the query's k-th distance is measured again with Distance.compute and offered
+// to the query's heap. The neighbours found are therefore the same, in the same order, as those of a linear scan
+public class BlockedScan {
+    private static final int TILE_VALUES = 1 << 14;  // Doubles of training rows per tile (128 KB)
+
+    private final double[] values;   // Training rows, row-major
+    private final int width;         // Number of features per row
+    private final int numRows;       // Number of training rows
+    private final double[] norms;    // Squared norm of every training row
+    private final int tileRows;      // Number of training rows per tile
+    private final double gamma;      // Relative error bound of an expanded distance, as a fraction of the two norms
+
+    // Constructor to compute the norms of the training rows
+    public BlockedScan(Dataset data) {
+        this.values = data.getValues();
+        this.width = data.getNumFeatures();
+        this.numRows = data.size();
+        this.norms = new double[numRows];
+        for (int row = 0; row < numRows; row++) {
+            norms[row] = dot(values, row * width, values, row * width);
+        }
+        this.tileRows = Math.max(4, TILE_VALUES / Math.max(1, width));
+        // The two norms and the dot product are each off by at most width units in the last place of their
+        // magnitude, which is at most the sum of the norms; doubled to also cover the rounding of the exact distance
+        this.gamma = (width + 4) * Math.ulp(1.0) * 2;
+    }
+
+    // Method to retrieve the number of training rows per tile, and so the size the dots buffer must have
+    public int getTileRows() {
+        return tileRows;
+    }
+
+    // Method to collect the k nearest training rows of queries fromQuery to toQuery - 1 (rows of a row-major array)
+    // into heaps[0 .. toQuery - fromQuery), which must be empty; returns the number of distances computed
+    // The count covers every query of the block, so it is a long: 64 queries over 2^25 rows already pass 2^31
+    public long search(double[] queries, int fromQuery, int toQuery, NeighborHeap[] heaps, double[] queryNorms,
+                       double[] dots) {
+        for (int q = fromQuery; q < toQuery; q++) {
+            queryNorms[q - fromQuery] = dot(queries, q * width, queries, q * width);
+        }
+        long computed = 0;
+        for (int fromRow = 0; fromRow < numRows; fromRow += tileRows) {
+            int toRow = Math.min(numRows, fromRow + tileRows);
+            for (int q = fromQuery; q < toQuery; q++) {
+                NeighborHeap heap = heaps[q - fromQuery];
+                double queryNorm = queryNorms[q - fromQuery];
+                dotRows(queries, q * width, fromRow, toRow, dots);
+                computed += toRow - fromRow;
+                // Rows are offered in order with a strict comparison, so ties keep the lowest row as a linear scan does
+                for (int row = fromRow; row < toRow; row++) {
+                    double expanded = queryNorm + norms[row] - 2 * dots[row - fromRow];
+                    if (expanded - gamma * (queryNorm + norms[row]) > heap.worst()) continue;
+                    double dist = Distance.EUCLIDEAN_SQUARED.compute(queries, q * width, values, row * width, width,
+                            heap.worst());
+                    computed++;
+                    if (dist < heap.worst()) heap.offer(dist, row);
+                }
+            }
+        }
+        return computed;
+    }
+
+    // Helper method to compute the dot products of a query with training rows fromRow to toRow - 1, four rows at a time
+    private void dotRows(double[] queries, int queryOffset, int fromRow, int toRow, double[] dots) {
+        int row = fromRow;
+        for (; row + 4 <= toRow; row += 4) {
+            int offset0 = row * width;
+            int offset1 = offset0 + width;
+            int offset2 = offset1 + width;
+            int offset3 = offset2 + width;
+            double sum0 = 0;
+            double sum1 = 0;
+            double sum2 = 0;
+            double sum3 = 0;
+            for (int j = 0; j < width; j++) {
+                double q = queries[queryOffset + j];
+                sum0 += q * values[offset0 + j];
+                sum1 += q * values[offset1 + j];
+                sum2 += q * values[offset2 + j];
+                sum3 += q * values[offset3 + j];
+            }
+            dots[row - fromRow] = sum0;
+            dots[row + 1 - fromRow] = sum1;
+            dots[row + 2 - fromRow] = sum2;
+            dots[row + 3 - fromRow] = sum3;
+        }
+        for (; row < toRow; row++) {
+            dots[row - fromRow] = dot(queries, queryOffset, values, row * width);
+        }
+    }
+
+    // Helper method to compute the dot product of two vectors of the scan's width
+    private double dot(double[] a, int aOffset, double[] b, int bOffset) {
+        double sum = 0;
+        for (int j = 0; j < width; j++) {
+            sum += a[aOffset + j] * b[bOffset + j];
+        }
+        return sum;
+    }
+}
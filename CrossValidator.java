@@ -0,0 +1,152 @@
+import java.math.BigDecimal;
+import java.util.*;
+
+// Class for k-fold cross-validation of KNN and Naive Bayes over a grid of k or c values
+// Rows are shuffled with a seed and dealt into folds; every fold is held out once while a model is trained on the
+// others, and the folds run in parallel. Each setting's predictions for all rows are pooled and scored by Evaluator.
+// Work is shared across the grid: KNN searches each held-out row once at the largest k and votes over prefixes of
+// the neighbour list for the smaller ones, and Naive Bayes counts each fold once and only re-smooths for every c
+public class CrossValidator {
+    private final Dataset data;   // Rows to cross-validate on
+    private final int folds;      // Number of folds
+    private final int[] foldOf;   // Fold holding out each row
+    private final int threads;    // Number of folds evaluated at the same time
+
+    // Class holding the pooled result of one setting across all folds
+    public static class Result {
+        private final String setting;                              // Setting, such as "K=5" or "C=0.5"
+        private final Map<String, Evaluator.LabelMetrics> metrics;  // Precision and recall counts per label
+        private final int correct;                                 // Number of rows predicted correctly
+        private final int total;                                   // Number of rows predicted
+
+        // Constructor to score a setting's predictions for every row against the true labels
+        public Result(String setting, List<String> actual, List<String> predicted) {
+            this.setting = setting;
+            this.metrics = Evaluator.evaluateMetrics(actual, predicted);
+            int matches = 0;
+            for (int i = 0; i < actual.size(); i++) {
+                if (actual.get(i).equals(predicted.get(i))) matches++;
+            }
+            this.correct = matches;
+            this.total = actual.size();
+        }
+
+        // Getter method to retrieve the setting
+        public String getSetting() {
+            return setting;
+        }
+
+        // Getter method to retrieve the metrics per label
+        public Map<String, Evaluator.LabelMetrics> getMetrics() {
+            return metrics;
+        }
+
+        // Getter method to retrieve the number of rows predicted correctly
+        public int getCorrect() {
+            return correct;
+        }
+
+        // Getter method to retrieve the number of rows predicted
+        public int getTotal() {
+            return total;
+        }
+
+        // Getter method to retrieve the fraction of rows predicted correctly
+        public double getAccuracy() {
+            return total == 0 ? 0 : (double) correct / total;
+        }
+    }
+
+    // Interface for the work done on one fold: train on the first dataset, and write the predictions for every
+    // setting of the held-out rows into predictions[setting][row], where rows lists their original positions
+    private interface FoldTask {
+        void run(Dataset train, Dataset heldOut, int[] rows, String[][] predictions);
+    }
+
+    // Constructor to deal the rows of a dataset into folds after shuffling them with a seed
+    public CrossValidator(Dataset data, int folds, long seed, int threads) {
+        if (folds < 2 || folds > data.size()) {
+            throw new IllegalArgumentException("Number of folds must be between 2 and the number of rows");
+        }
+        this.data = data;
+        this.folds = folds;
+        this.threads = threads;
+
+        int[] order = new int[data.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Random random = new Random(seed);
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        this.foldOf = new int[data.size()];
+        for (int position = 0; position < order.length; position++) {
+            foldOf[order[position]] = position % folds;
+        }
+    }
+
+    // Method to cross-validate KNN for every k in kValues, searching each held-out row only once
+    public List<Result> sweepKNN(int[] kValues, KNN.SearchMode mode, Distance distance, int nlist, int nprobe) {
+        int maxK = Arrays.stream(kValues).max().orElseThrow();
+        String[][] predictions = run(kValues.length, (train, heldOut, rows, out) -> {
+            KNN knn = new KNN(maxK, mode, distance, nlist, nprobe);
+            knn.train(train);
+            for (int i = 0; i < heldOut.size(); i++) {
+                String[] perK = knn.predictForEachK(heldOut.getRow(i), kValues);
+                for (int s = 0; s < kValues.length; s++) out[s][rows[i]] = perK[s];
+            }
+        });
+
+        List<Result> results = new ArrayList<>();
+        for (int s = 0; s < kValues.length; s++) {
+            results.add(new Result("K=" + kValues[s], data.getLabelList(), Arrays.asList(predictions[s])));
+        }
+        return results;
+    }
+
+    // Method to cross-validate Naive Bayes for every c in cValues, counting each fold only once
+    public List<Result> sweepNaiveBayes(double[] cValues, boolean logSpace, NaiveBayes.FeatureModel featureModel) {
+        String[][] predictions = run(cValues.length, (train, heldOut, rows, out) -> {
+            NaiveBayes naiveBayes = new NaiveBayes(cValues[0], false, logSpace, featureModel);
+            naiveBayes.train(train);
+            for (int s = 0; s < cValues.length; s++) {
+                naiveBayes.setC(cValues[s]);
+                List<String> predicted = naiveBayes.predictOnData(heldOut, 1, false);
+                for (int i = 0; i < rows.length; i++) out[s][rows[i]] = predicted.get(i);
+            }
+        });
+
+        List<Result> results = new ArrayList<>();
+        for (int s = 0; s < cValues.length; s++) {
+            String c = BigDecimal.valueOf(cValues[s]).stripTrailingZeros().toPlainString();
+            results.add(new Result("C=" + c, data.getLabelList(), Arrays.asList(predictions[s])));
+        }
+        return results;
+    }
+
+    // Helper method to split the rows of every fold into training and held-out datasets and run the fold's task,
+    // several folds at a time, returning the predictions of every setting for every row
+    private String[][] run(int settings, FoldTask task) {
+        String[][] predictions = new String[settings][data.size()];
+        Parallel.forRange(folds, threads, (fromFold, toFold) -> {
+            for (int fold = fromFold; fold < toFold; fold++) {
+                Dataset train = new Dataset(data.getNumFeatures(), data.size());
+                Dataset heldOut = new Dataset(data.getNumFeatures(), data.size() / folds + 1);
+                int[] rows = new int[data.size()];
+                int numHeldOut = 0;
+                for (int row = 0; row < data.size(); row++) {
+                    if (foldOf[row] == fold) {
+                        heldOut.addRow(data.getRow(row), data.getLabel(row));
+                        rows[numHeldOut++] = row;
+                    } else {
+                        train.addRow(data.getRow(row), data.getLabel(row));
+                    }
+                }
+                task.run(train, heldOut, Arrays.copyOf(rows, numHeldOut), predictions);
+            }
+        });
+        return predictions;
+    }
+}
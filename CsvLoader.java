@@ -0,0 +1,413 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Class for loading input files straight into a Dataset without building a String per line or boxing any value
+// The file is memory-mapped and tokenised as bytes; large files are split at line boundaries and parsed in parallel
+public class CsvLoader {
+    private static final int PARALLEL_THRESHOLD = 1 << 22;  // Files smaller than this (4 MB) are parsed on one thread
+    private static final int MAX_CHUNK = 1 << 30;           // Largest byte range mapped at once
+    private static final int BLOCK_BYTES = 1 << 22;         // Bytes of whole lines parsed at a time by readBlocks
+
+    // Powers of ten that are exact as doubles, used by the fast path of parseDouble
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Enum for the two input formats read by the program
+    public enum Format {
+        CSV,     // KNN and Naive Bayes input: comma separated decimals, label in the last column
+        KMEANS   // K-Means input: integers separated by commas or whitespace, identity last, '#' comment lines
+    }
+
+    // Method to load a KNN or Naive Bayes input file
+    public static Dataset readCsv(String filename, int threads) throws IOException {
+        return read(filename, Format.CSV, threads);
+    }
+
+    // Method to load a K-Means input file
+    public static Dataset readKMeans(String filename, int threads) throws IOException {
+        return read(filename, Format.KMEANS, threads);
+    }
+
+    // Method to load a file in the given format, parsing byte ranges of large files on several threads
+    // Binary dataset files written by DatasetFile are recognised by their header and loaded without parsing
+    public static Dataset read(String filename, Format format, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (DatasetFile.isBinary(channel)) return DatasetFile.read(channel);
+            long size = channel.size();
+            int parts = size < PARALLEL_THRESHOLD ? 1 : Parallel.resolveThreads(threads);
+            parts = (int) Math.max(parts, (size + MAX_CHUNK - 1) / MAX_CHUNK);
+
+            // Move every split point forward to the start of a line
+            long[] bounds = new long[parts + 1];
+            bounds[parts] = size;
+            for (int p = 1; p < parts; p++) {
+                bounds[p] = Math.max(bounds[p - 1], lineStartAfter(channel, size * p / parts, size));
+            }
+
+            Chunk[] chunks = new Chunk[parts];
+            IOException[] failure = new IOException[1];
+            Parallel.forRange(parts, threads, (from, to) -> {
+                for (int p = from; p < to; p++) {
+                    try {
+                        chunks[p] = parse(channel.map(FileChannel.MapMode.READ_ONLY, bounds[p],
+                                bounds[p + 1] - bounds[p]), format);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+            return merge(chunks, format);
+        }
+    }
+
+    // Interface for receiving the rows of a file one block at a time
+    public interface BlockConsumer {
+        void accept(Dataset block) throws IOException;
+    }
+
+    // Method to parse a text file a block of whole lines at a time with the same parser as read, handing the blocks
+    // to the consumer in file order, so callers that stream rows accept exactly the rows read would
+    // Only one block is held in memory; each block has its own label codes
+    public static void readBlocks(String filename, Format format, BlockConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_BYTES);
+            int width = -1;
+            boolean end = false;
+            while (!end) {
+                end = channel.read(buffer) < 0;
+                // Parse up to the last line break and keep the partial line after it for the next block
+                int cut = buffer.position();
+                while (!end && cut > 0 && buffer.get(cut - 1) != '\n' && buffer.get(cut - 1) != '\r') cut--;
+                if (cut == 0 && !end) {
+                    // A line longer than the buffer: read more of it, growing the buffer once it is full
+                    if (!buffer.hasRemaining()) buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+                    continue;
+                }
+                Dataset block = merge(new Chunk[]{parse(ByteBuffer.wrap(buffer.array(), 0, cut), format)}, format);
+                if (block.size() > 0) {
+                    if (width >= 0 && block.getNumFeatures() != width) {
+                        rejectWidth(format, width, block.getNumFeatures());
+                    }
+                    width = block.getNumFeatures();
+                    consumer.accept(block);
+                }
+                buffer.flip().position(cut);
+                buffer.compact();
+            }
+        }
+    }
+
+    // Method to parse text already in memory, such as the contents of a file read into a String
+    public static Dataset parse(String text, Format format) {
+        return merge(new Chunk[]{parse(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), format)}, format);
+    }
+
+    // Helper method to find the position just after the first line break at or after pos
+    private static long lineStartAfter(FileChannel channel, long pos, long size) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        while (pos < size) {
+            probe.clear();
+            int read = channel.read(probe, pos);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                byte b = probe.get(i);
+                if (b == '\n' || b == '\r') return pos + i + 1;
+            }
+            pos += read;
+        }
+        return size;
+    }
+
+    // Helper method to append the chunks to one dataset in file order, so label codes follow first appearance
+    private static Dataset merge(Chunk[] chunks, Format format) {
+        int width = -1;
+        int rows = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.rows == 0) continue;
+            if (chunk.widthMismatch) rejectWidth(format, chunk.width, chunk.badWidth);
+            if (width >= 0 && chunk.width != width) rejectWidth(format, width, chunk.width);
+            width = chunk.width;
+            rows += chunk.rows;
+        }
+
+        Dataset dataset = new Dataset(width, rows);
+        for (Chunk chunk : chunks) {
+            if (chunk.rows == 0) continue;
+            int[] codes = new int[chunk.labels.size()];
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = dataset.encodeLabel(chunk.labels.get(i));
+            }
+            for (int row = 0; row < chunk.rows; row++) {
+                chunk.labelCodes[row] = codes[chunk.labelCodes[row]];
+            }
+            dataset.addRows(chunk.values, chunk.width, chunk.rows, chunk.labelCodes);
+        }
+        return dataset;
+    }
+
+    // Helper method to report rows of different widths the way each format always has
+    private static void rejectWidth(Format format, int expected, int found) {
+        if (format == Format.KMEANS) {
+            System.out.println("Incorrect dimensions for K-Means data input. Check README for more details.");
+            System.exit(0);
+        }
+        throw new IllegalArgumentException("Row has " + found + " features, expected " + expected);
+    }
+
+    // Helper method to parse every line of a buffer into a chunk
+    private static Chunk parse(ByteBuffer buffer, Format format) {
+        Chunk chunk = new Chunk();
+        int limit = buffer.limit();
+        int[] fieldStart = new int[16];
+        int[] fieldEnd = new int[16];
+        int pos = 0;
+
+        while (pos < limit && !chunk.widthMismatch) {
+            int lineEnd = pos;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n' && buffer.get(lineEnd) != '\r') lineEnd++;
+
+            // Split the line into fields
+            int fields = 0;
+            if (format == Format.CSV) {
+                // Every non-empty line is a row; trailing empty fields are dropped, as String.split does
+                if (lineEnd > pos) {
+                    int start = pos;
+                    for (int i = pos; i <= lineEnd; i++) {
+                        if (i == lineEnd || buffer.get(i) == ',') {
+                            if (fields == fieldStart.length) {
+                                fieldStart = Arrays.copyOf(fieldStart, fields * 2);
+                                fieldEnd = Arrays.copyOf(fieldEnd, fields * 2);
+                            }
+                            fieldStart[fields] = start;
+                            fieldEnd[fields++] = i;
+                            start = i + 1;
+                        }
+                    }
+                    while (fields > 0 && fieldStart[fields - 1] == fieldEnd[fields - 1]) fields--;
+                }
+            } else {
+                // Commas and whitespace both separate tokens; blank lines and '#' comments are skipped
+                int i = pos;
+                while (i < lineEnd && isSeparator(buffer.get(i))) i++;
+                if (i < lineEnd && buffer.get(i) != '#') {
+                    while (i < lineEnd) {
+                        int start = i;
+                        while (i < lineEnd && !isSeparator(buffer.get(i))) i++;
+                        if (fields == fieldStart.length) {
+                            fieldStart = Arrays.copyOf(fieldStart, fields * 2);
+                            fieldEnd = Arrays.copyOf(fieldEnd, fields * 2);
+                        }
+                        fieldStart[fields] = start;
+                        fieldEnd[fields++] = i;
+                        while (i < lineEnd && isSeparator(buffer.get(i))) i++;
+                    }
+                }
+            }
+            pos = lineEnd + 1;
+            if (fields == 0) continue;
+
+            // Parse the features straight into the chunk and look the label up without decoding it again
+            int width = fields - 1;
+            if (!chunk.startRow(width)) break;
+            for (int f = 0; f < width; f++) {
+                chunk.values[chunk.rows * width + f] = format == Format.CSV
+                        ? parseDouble(buffer, fieldStart[f], fieldEnd[f])
+                        : parseInt(buffer, fieldStart[f], fieldEnd[f]);
+            }
+            chunk.labelCodes[chunk.rows++] = chunk.encodeLabel(buffer, fieldStart[width], fieldEnd[width]);
+        }
+        return chunk;
+    }
+
+    // Helper method to check whether a byte separates K-Means tokens (a comma or whitespace)
+    private static boolean isSeparator(byte b) {
+        return b == ',' || b == ' ' || b == '\t' || b == '\f' || b == 0x0B;
+    }
+
+    // Method to parse a decimal number from bytes [start, end)
+    // Plain decimals with at most 15 significant digits and a small exponent are computed exactly with one
+    // multiplication or division (Clinger's fast path); anything else falls back to Double.parseDouble
+    static double parseDouble(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        // Leading zeros do not count towards the significant digits
+        while (i < end && buffer.get(i) == '0') {
+            i++;
+            sawDigit = true;
+        }
+        while (i < end && isDigit(buffer.get(i))) {
+            mantissa = mantissa * 10 + (buffer.get(i++) - '0');
+            digits++;
+            sawDigit = true;
+        }
+        if (i < end && buffer.get(i) == '.') {
+            i++;
+            if (digits == 0) {
+                while (i < end && buffer.get(i) == '0') {
+                    i++;
+                    exponent--;
+                    sawDigit = true;
+                }
+            }
+            while (i < end && isDigit(buffer.get(i))) {
+                mantissa = mantissa * 10 + (buffer.get(i++) - '0');
+                digits++;
+                exponent--;
+                sawDigit = true;
+            }
+        }
+        if (sawDigit && i < end && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negativeExponent = buffer.get(i) == '-';
+                i++;
+            }
+            int explicit = 0;
+            int expDigits = 0;
+            while (i < end && isDigit(buffer.get(i)) && explicit < 100000) {
+                explicit = explicit * 10 + (buffer.get(i++) - '0');
+                expDigits++;
+            }
+            if (expDigits == 0) return Double.parseDouble(decode(buffer, start, end));
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+
+        if (sawDigit && i == end && digits <= 15) {
+            double value = mantissa;
+            if (mantissa == 0 || exponent == 0) return negative ? -value : value;
+            if (exponent > 0 && exponent <= 22) value *= POWERS_OF_TEN[exponent];
+            else if (exponent < 0 && exponent >= -22) value /= POWERS_OF_TEN[-exponent];
+            else return Double.parseDouble(decode(buffer, start, end));
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(decode(buffer, start, end));
+    }
+
+    // Method to parse an integer from bytes [start, end) with the same rules as Integer.parseInt
+    static int parseInt(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long value = 0;
+        if (i == end || end - i > 10) return Integer.parseInt(decode(buffer, start, end));
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (!isDigit(b)) return Integer.parseInt(decode(buffer, start, end));
+            value = value * 10 + (b - '0');
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) return Integer.parseInt(decode(buffer, start, end));
+        return (int) value;
+    }
+
+    // Helper method to check whether a byte is an ASCII digit
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    // Helper method to decode bytes [start, end) as UTF-8 text
+    private static String decode(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Class holding the rows parsed from one byte range, with labels coded in order of first appearance
+    private static class Chunk {
+        private int width = -1;              // Number of features per row (-1 before the first row)
+        private boolean widthMismatch;       // Whether a row of a different width was found
+        private int badWidth;                // Width of the mismatching row
+        private int rows;                    // Number of rows parsed
+        private double[] values = new double[0];                   // Row-major features
+        private int[] labelCodes = new int[16];                    // Local label code of each row
+        private final List<String> labels = new ArrayList<>();     // Local label code -> label name
+        private final List<byte[]> labelBytes = new ArrayList<>(); // Local label code -> label bytes
+        private int[] table = new int[64];                         // Open addressing table of local code + 1, 0 when empty
+
+        // Method to make room for one more row of the given width, returning false when the width is wrong
+        private boolean startRow(int rowWidth) {
+            if (width < 0) {
+                width = rowWidth;
+                values = new double[Math.max(rowWidth, 1) * 16];
+            } else if (rowWidth != width) {
+                widthMismatch = true;
+                badWidth = rowWidth;
+                return false;
+            }
+            if (rows == labelCodes.length) labelCodes = Arrays.copyOf(labelCodes, rows * 2);
+            if ((rows + 1) * width > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, (rows + 1) * width));
+            }
+            return true;
+        }
+
+        // Method to return the local code of the label in bytes [start, end), registering it if it is new
+        private int encodeLabel(ByteBuffer buffer, int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i++) hash = 31 * hash + buffer.get(i);
+            int mask = table.length - 1;
+            for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+                int entry = table[slot];
+                if (entry == 0) {
+                    int code = labels.size();
+                    byte[] bytes = new byte[end - start];
+                    buffer.get(start, bytes);
+                    labelBytes.add(bytes);
+                    labels.add(new String(bytes, StandardCharsets.UTF_8));
+                    table[slot] = code + 1;
+                    if (labels.size() * 2 > table.length) rehash();
+                    return code;
+                }
+                if (matches(labelBytes.get(entry - 1), buffer, start, end)) return entry - 1;
+            }
+        }
+
+        // Helper method to double the label table
+        private void rehash() {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for (int code = 0; code < labelBytes.size(); code++) {
+                byte[] bytes = labelBytes.get(code);
+                int hash = 1;
+                for (byte b : bytes) hash = 31 * hash + b;
+                int slot = mix(hash) & mask;
+                while (table[slot] != 0) slot = (slot + 1) & mask;
+                table[slot] = code + 1;
+            }
+        }
+
+        // Helper method to compare stored label bytes with bytes [start, end) of the buffer
+        private static boolean matches(byte[] bytes, ByteBuffer buffer, int start, int end) {
+            if (bytes.length != end - start) return false;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != buffer.get(start + i)) return false;
+            }
+            return true;
+        }
+
+        // Helper method to spread the bits of a hash across the table
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16) * 0x85EBCA6B;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import java.util.*;
+
+// Class representing a dense dataset stored in contiguous primitive arrays
+public class Dataset {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int numFeatures;     // Number of feature columns (-1 until the first row is added)
+    private int numRows;         // Number of rows currently stored
+    private double[] values;     // Row-major feature storage: values[row * numFeatures + col]
+    private double[] columns;    // Column-major view of the features, built lazily
+    private int[] labels;        // Int-encoded label of each row
+    private final List<String> labelNames = new ArrayList<>();       // Label code -> label name
+    private final Map<String, Integer> labelCodes = new HashMap<>(); // Label name -> label code
+
+    // Constructor to create an empty dataset whose width is fixed by the first row added
+    public Dataset() {
+        this(-1, INITIAL_CAPACITY);
+    }
+
+    // Constructor to create an empty dataset with a known width and expected number of rows
+    public Dataset(int numFeatures, int capacity) {
+        this.numFeatures = numFeatures;
+        this.numRows = 0;
+        capacity = Math.max(capacity, 1);
+        this.values = new double[Math.max(numFeatures, 0) * capacity];
+        this.labels = new int[capacity];
+    }
+
+    // Constructor to wrap arrays that are already laid out, such as those read from a binary dataset file
+    Dataset(int numFeatures, int numRows, double[] values, double[] columns, int[] labels, List<String> labelNames) {
+        this.numFeatures = numFeatures;
+        this.numRows = numRows;
+        this.values = values;
+        this.columns = columns;
+        this.labels = labels;
+        for (String label : labelNames) {
+            encodeLabel(label);
+        }
+    }
+
+    // Method to build a dataset from boxed rows and their labels
+    public static Dataset fromLists(List<List<Double>> data, List<String> labels) {
+        int width = data.isEmpty() ? -1 : data.get(0).size();
+        Dataset dataset = new Dataset(width, data.size());
+        for (int i = 0; i < data.size(); i++) {
+            dataset.addRow(data.get(i), labels.get(i));
+        }
+        return dataset;
+    }
+
+    // Method to build a dataset from nodes, using each node's identity as its label
+    public static Dataset fromNodes(List<Node> nodes) {
+        int width = nodes.isEmpty() ? -1 : nodes.get(0).getPredList().size();
+        Dataset dataset = new Dataset(width, nodes.size());
+        for (Node node : nodes) {
+            dataset.addRow(node.getPredList(), node.getIdentity());
+        }
+        return dataset;
+    }
+
+    // Method to append a row of features with its label
+    public void addRow(double[] row, String label) {
+        addRow(row, encodeLabel(label));
+    }
+
+    // Method to append a row of features with an already encoded label
+    public void addRow(double[] row, int labelCode) {
+        checkWidth(row.length);
+        ensureCapacity(numRows + 1);
+        System.arraycopy(row, 0, values, numRows * numFeatures, numFeatures);
+        labels[numRows++] = labelCode;
+        columns = null;
+    }
+
+    // Method to append count rows of the given width stored row-major in block, with already encoded labels
+    public void addRows(double[] block, int width, int count, int[] labelCodes) {
+        checkWidth(width);
+        ensureCapacity(numRows + count);
+        System.arraycopy(block, 0, values, numRows * numFeatures, count * numFeatures);
+        System.arraycopy(labelCodes, 0, labels, numRows, count);
+        numRows += count;
+        columns = null;
+    }
+
+    // Method to append a boxed row of features with its label
+    public void addRow(List<Double> row, String label) {
+        checkWidth(row.size());
+        ensureCapacity(numRows + 1);
+        int offset = numRows * numFeatures;
+        for (int j = 0; j < numFeatures; j++) {
+            values[offset + j] = row.get(j);
+        }
+        labels[numRows++] = encodeLabel(label);
+        columns = null;
+    }
+
+    // Method to return the code of a label, registering it if it has not been seen before
+    public int encodeLabel(String label) {
+        Integer code = labelCodes.get(label);
+        if (code == null) {
+            code = labelNames.size();
+            labelNames.add(label);
+            labelCodes.put(label, code);
+        }
+        return code;
+    }
+
+    // Getter method to retrieve the number of rows
+    public int size() {
+        return numRows;
+    }
+
+    // Getter method to retrieve the number of feature columns
+    public int getNumFeatures() {
+        return Math.max(numFeatures, 0);
+    }
+
+    // Getter method to retrieve the number of distinct labels
+    public int getNumLabels() {
+        return labelNames.size();
+    }
+
+    // Method to retrieve a single feature value
+    public double get(int row, int col) {
+        return values[row * numFeatures + col];
+    }
+
+    // Method to copy a single row out of the dataset
+    public double[] getRow(int row) {
+        double[] copy = new double[getNumFeatures()];
+        System.arraycopy(values, row * numFeatures, copy, 0, copy.length);
+        return copy;
+    }
+
+    // Getter method to retrieve the row-major storage (only the first size() * getNumFeatures() entries are used)
+    public double[] getValues() {
+        return values;
+    }
+
+    // Getter method to retrieve the column-major view: columns[col * size() + row]
+    public double[] getColumns() {
+        if (columns == null) {
+            int width = getNumFeatures();
+            double[] view = new double[width * numRows];
+            for (int i = 0; i < numRows; i++) {
+                int offset = i * width;
+                for (int j = 0; j < width; j++) {
+                    view[j * numRows + i] = values[offset + j];
+                }
+            }
+            columns = view;
+        }
+        return columns;
+    }
+
+    // Method to retrieve the label code of a row
+    public int getLabelCode(int row) {
+        return labels[row];
+    }
+
+    // Getter method to retrieve the label codes (only the first size() entries are used)
+    public int[] getLabelCodes() {
+        return labels;
+    }
+
+    // Method to retrieve the label name of a row
+    public String getLabel(int row) {
+        return labelNames.get(labels[row]);
+    }
+
+    // Method to retrieve the label name for a label code
+    public String getLabelName(int code) {
+        return labelNames.get(code);
+    }
+
+    // Getter method to retrieve the label dictionary in code order
+    public List<String> getLabelNames() {
+        return Collections.unmodifiableList(labelNames);
+    }
+
+    // Method to decode the label column into a list of label names
+    public List<String> getLabelList() {
+        List<String> decoded = new ArrayList<>(numRows);
+        for (int i = 0; i < numRows; i++) {
+            decoded.add(labelNames.get(labels[i]));
+        }
+        return decoded;
+    }
+
+    // Helper method to fix the width on the first row and reject rows of a different width
+    private void checkWidth(int width) {
+        if (numFeatures < 0) {
+            numFeatures = width;
+            values = new double[width * labels.length];
+        } else if (width != numFeatures) {
+            throw new IllegalArgumentException("Row has " + width + " features, expected " + numFeatures);
+        }
+    }
+
+    // Helper method to grow the backing arrays when they are full
+    private void ensureCapacity(int rows) {
+        if (rows <= labels.length) return;
+        int capacity = Math.max(rows, labels.length + (labels.length >> 1));
+        labels = Arrays.copyOf(labels, capacity);
+        values = Arrays.copyOf(values, capacity * numFeatures);
+    }
+}
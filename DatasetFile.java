@@ -0,0 +1,184 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Class for reading and writing datasets in a compact binary format, so repeated runs skip text parsing
+//
+// Layout (all numbers little-endian):
+//   header   magic "KNKB", version, source format, row count, feature count, label count   (six ints)
+//   schema   one type code per feature column (always TYPE_DOUBLE for now)                  (ints)
+//   labels   for every label code in order: byte length, then its UTF-8 bytes
+//   padding  zero bytes up to the next multiple of 8
+//   columns  one block of row-count doubles per feature column
+//   codes    one block of row-count ints holding each row's label code
+public class DatasetFile {
+    private static final int MAGIC = 0x424B4E4B;  // "KNKB" read as a little-endian int
+    private static final int VERSION = 1;
+    private static final int TYPE_DOUBLE = 1;      // Schema code of a double feature column
+    private static final int READ_BUFFER = 1 << 20;  // Bytes read from the file at a time
+
+    // Method to check whether the named file is a binary dataset file, treating unreadable files as text
+    public static boolean isBinary(String filename) {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            return isBinary(channel);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Method to check whether a file starts with the binary dataset magic number
+    public static boolean isBinary(FileChannel channel) throws IOException {
+        if (channel.size() < 4) return false;
+        ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(magic, 0);
+        return magic.getInt(0) == MAGIC;
+    }
+
+    // Method to convert a text input file in the given format into a binary dataset file
+    public static Dataset convert(String inputFile, String outputFile, CsvLoader.Format format, int threads)
+            throws IOException {
+        Dataset dataset = CsvLoader.read(inputFile, format, threads);
+        write(dataset, format, outputFile);
+        return dataset;
+    }
+
+    // Method to write a dataset to a binary dataset file
+    public static void write(Dataset dataset, CsvLoader.Format format, String filename) throws IOException {
+        int numRows = dataset.size();
+        int numFeatures = dataset.getNumFeatures();
+        List<String> labelNames = dataset.getLabelNames();
+
+        // Header, schema and label dictionary
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        for (int value : new int[]{MAGIC, VERSION, format.ordinal(), numRows, numFeatures, labelNames.size()}) {
+            header.writeInt(Integer.reverseBytes(value));
+        }
+        for (int col = 0; col < numFeatures; col++) {
+            header.writeInt(Integer.reverseBytes(TYPE_DOUBLE));
+        }
+        for (String label : labelNames) {
+            byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+            header.writeInt(Integer.reverseBytes(bytes.length));
+            header.write(bytes);
+        }
+        while (headerBytes.size() % 8 != 0) header.writeByte(0);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, ByteBuffer.wrap(headerBytes.toByteArray()));
+
+            // Feature columns, then label codes, written through one reusable buffer
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            double[] columns = dataset.getColumns();
+            for (int i = 0; i < numRows * numFeatures; i++) {
+                if (buffer.remaining() < 8) writeFully(channel, buffer.flip()).clear();
+                buffer.putDouble(columns[i]);
+            }
+            int[] codes = dataset.getLabelCodes();
+            for (int row = 0; row < numRows; row++) {
+                if (buffer.remaining() < 4) writeFully(channel, buffer.flip()).clear();
+                buffer.putInt(codes[row]);
+            }
+            writeFully(channel, buffer.flip());
+        }
+    }
+
+    // Method to read a binary dataset file and copy its blocks into a dataset without parsing any text
+    // The file is read through one bounded buffer, so files of any size load with the same small footprint
+    public static Dataset read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER).order(ByteOrder.LITTLE_ENDIAN).flip();
+        channel.position(0);
+        if (channel.size() < 24 || !fill(channel, buffer, 24) || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a binary dataset file");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) throw new IOException("Unsupported binary dataset version " + version);
+        buffer.getInt();  // Source format, kept for reference
+        int numRows = buffer.getInt();
+        int numFeatures = buffer.getInt();
+        int numLabels = buffer.getInt();
+        long numValues = (long) numRows * numFeatures;
+        if (numRows < 0 || numFeatures < 0 || numLabels < 0 || numValues > Integer.MAX_VALUE - 8) {
+            throw new IOException("Binary dataset is too large to load");
+        }
+        long position = 24;  // Bytes of the file consumed so far
+        for (int col = 0; col < numFeatures; col++) {
+            require(channel, buffer, 4);
+            if (buffer.getInt() != TYPE_DOUBLE) throw new IOException("Unsupported column type in binary dataset");
+        }
+        position += 4L * numFeatures;
+        List<String> labelNames = new ArrayList<>(numLabels);
+        for (int i = 0; i < numLabels; i++) {
+            require(channel, buffer, 4);
+            byte[] bytes = new byte[buffer.getInt()];
+            for (int copied = 0; copied < bytes.length; ) {
+                require(channel, buffer, 1);
+                int chunk = Math.min(buffer.remaining(), bytes.length - copied);
+                buffer.get(bytes, copied, chunk);
+                copied += chunk;
+            }
+            labelNames.add(new String(bytes, StandardCharsets.UTF_8));
+            position += 4 + bytes.length;
+        }
+        int padding = (int) (((position + 7) & ~7L) - position);
+        require(channel, buffer, padding);
+        buffer.position(buffer.position() + padding);
+
+        // The column blocks are the dataset's column-major view; the row-major storage is their transpose
+        double[] columns = new double[(int) numValues];
+        for (int copied = 0; copied < columns.length; ) {
+            require(channel, buffer, 8);
+            int chunk = Math.min(buffer.remaining() / 8, columns.length - copied);
+            buffer.asDoubleBuffer().get(columns, copied, chunk);
+            buffer.position(buffer.position() + chunk * 8);
+            copied += chunk;
+        }
+        int[] codes = new int[numRows];
+        for (int copied = 0; copied < codes.length; ) {
+            require(channel, buffer, 4);
+            int chunk = Math.min(buffer.remaining() / 4, codes.length - copied);
+            buffer.asIntBuffer().get(codes, copied, chunk);
+            buffer.position(buffer.position() + chunk * 4);
+            copied += chunk;
+        }
+
+        double[] values = new double[columns.length];
+        for (int col = 0; col < numFeatures; col++) {
+            int offset = col * numRows;
+            for (int row = 0; row < numRows; row++) {
+                values[row * numFeatures + col] = columns[offset + row];
+            }
+        }
+        return new Dataset(numFeatures, numRows, values, columns, codes, labelNames);
+    }
+
+    // Helper method to read from a channel until a buffer holds at least bytes unread bytes
+    // Returns false if the channel ends first
+    private static boolean fill(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) return true;
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                buffer.flip();
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    // Helper method to make sure a buffer holds at least bytes unread bytes, failing on a truncated file
+    private static void require(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (!fill(channel, buffer, bytes)) throw new IOException("Truncated binary dataset file");
+    }
+
+    // Helper method to write the whole of a buffer to a channel
+    private static ByteBuffer writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.*;
+
+// Class checking every distance kernel against a plain reference loop, so a change to the scalar or SIMD kernels
+// cannot silently change the distances KNN and K-Means rank by. Run it once with each kernel:
+//   java DistanceCheck
+//   java --add-modules jdk.incubator.vector DistanceCheck
+// Vectors with small integer coordinates repeat values and tie often; their sums are exact in any order, so every
+// kernel must match the reference exactly. Vectors with real coordinates may differ by the tolerance given in Distance.
+// Every mismatch is printed and the exit status is 1 if there was any
+public class DistanceCheck {
+    private static final int[] WIDTHS = {1, 2, 3, 4, 5, 7, 8, 9, 15, 16, 17, 31, 32, 33, 64, 100};  // Around 2, 4, 8 lanes
+    private static final int ROWS = 97;        // Training rows per trial, not a multiple of any block size
+    private static final int QUERIES = 11;     // Queries per trial, not a multiple of the four queries of a block
+    private static final int K = 5;            // Neighbours kept by the scanRows checks
+    private static final int TRIALS = 8;       // Trials per width, alternating integer and real coordinates
+    private static final int MAX_REPORTED = 20;  // Mismatches printed before the rest are only counted
+
+    private static long comparisons;  // Number of values compared with the reference
+    private static long mismatches;   // Number of them that did not match
+
+    // Main method to run every check, optionally with the random seed as the only argument
+    public static void main(String[] args) {
+        Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 42);
+        Distance[] distances = {Distance.MANHATTAN, Distance.EUCLIDEAN_SQUARED, new Distance.Manhattan(),
+                new Distance.EuclideanSquared()};
+        for (int width : WIDTHS) {
+            for (int trial = 0; trial < TRIALS; trial++) {
+                boolean integral = trial % 2 == 0;
+                double[] rows = table(random, ROWS, width, integral);
+                double[] queries = table(random, QUERIES, width, integral);
+                // Repeat a few rows so that queries at distance zero and duplicate rows are covered
+                System.arraycopy(rows, 0, queries, 0, width);
+                System.arraycopy(rows, 5 * width, rows, 6 * width, width);
+                for (Distance distance : distances) {
+                    checkCompute(distance, rows, queries, width, integral);
+                    checkRows(distance, rows, queries, width, integral);
+                    checkScan(distance, rows, queries, width, integral);
+                    checkBlock(distance, rows, queries, width, integral);
+                }
+                checkNodes(rows, width, integral);
+            }
+        }
+
+        System.out.println("Kernel=" + Distance.EUCLIDEAN_SQUARED.getKernel() + " Comparisons=" + comparisons
+                + " Mismatches=" + mismatches);
+        if (mismatches > 0) System.exit(1);
+    }
+
+    // Helper method to fill a row-major table with integer coordinates in [0, 4) or real ones around 1000
+    private static double[] table(Random random, int numRows, int width, boolean integral) {
+        double[] values = new double[numRows * width];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = integral ? random.nextInt(4) : 1000 + random.nextGaussian() * 100;
+        }
+        return values;
+    }
+
+    // Helper method to compute a distance with the plain loop the kernels are checked against
+    private static double reference(Distance distance, double[] a, int aOffset, double[] b, int bOffset, int width) {
+        boolean squared = distance.getName().equals("e2");
+        double totalSum = 0;
+        for (int idx = 0; idx < width; idx++) {
+            double diff = a[aOffset + idx] - b[bOffset + idx];
+            totalSum += squared ? diff * diff : Math.abs(diff);
+        }
+        return totalSum;
+    }
+
+    // Helper method to check compute without a bound, and with bounds below, at and above the full distance
+    private static void checkCompute(Distance distance, double[] rows, double[] queries, int width, boolean integral) {
+        for (int q = 0; q < QUERIES; q++) {
+            for (int row = 0; row < ROWS; row++) {
+                double expected = reference(distance, queries, q * width, rows, row * width, width);
+                double full = distance.compute(queries, q * width, rows, row * width, width);
+                expect(matches(full, expected, width, integral), distance, "compute", width, expected, full);
+                for (double bound : new double[]{0, expected / 2, expected, expected * 2}) {
+                    double bounded = distance.compute(queries, q * width, rows, row * width, width, bound);
+                    expect(obeysBound(bounded, expected, bound, width, integral), distance, "compute bound " + bound,
+                            width, expected, bounded);
+                }
+            }
+        }
+    }
+
+    // Helper method to check computeRows over a range of rows, written at an offset, with and without a bound
+    private static void checkRows(Distance distance, double[] rows, double[] queries, int width, boolean integral) {
+        int fromRow = 3;
+        int toRow = ROWS - 2;
+        double[] out = new double[ROWS + 1];
+        for (int q = 0; q < QUERIES; q++) {
+            double bound = reference(distance, queries, q * width, rows, 0, width);
+            for (double rowsBound : new double[]{Double.POSITIVE_INFINITY, bound}) {
+                distance.computeRows(queries, q * width, rows, fromRow, toRow, width, rowsBound, out, 1);
+                for (int row = fromRow; row < toRow; row++) {
+                    double expected = reference(distance, queries, q * width, rows, row * width, width);
+                    expect(obeysBound(out[1 + row - fromRow], expected, rowsBound, width, integral), distance,
+                            "computeRows bound " + rowsBound, width, expected, out[1 + row - fromRow]);
+                }
+            }
+        }
+    }
+
+    // Helper method to check that scanRows keeps the k nearest rows of a range, lowest row first on ties
+    private static void checkScan(Distance distance, double[] rows, double[] queries, int width, boolean integral) {
+        int fromRow = 2;
+        int toRow = ROWS - 1;
+        NeighborHeap heap = new NeighborHeap(K);
+        Integer[] order = new Integer[toRow - fromRow];
+        double[] expected = new double[ROWS];
+        for (int q = 0; q < QUERIES; q++) {
+            for (int row = fromRow; row < toRow; row++) {
+                expected[row] = reference(distance, queries, q * width, rows, row * width, width);
+                order[row - fromRow] = row;
+            }
+            Arrays.sort(order, (a, b) -> expected[a] != expected[b] ? Double.compare(expected[a], expected[b]) : a - b);
+
+            heap.clear();
+            distance.scanRows(queries, q * width, rows, fromRow, toRow, width, heap);
+            int size = heap.sortAscending();
+            expect(size == K, distance, "scanRows size", width, K, size);
+            for (int p = 0; p < Math.min(size, K); p++) {
+                int row = order[p];
+                expect(heap.index(p) == row, distance, "scanRows row at " + p, width, row, heap.index(p));
+                expect(matches(heap.distance(p), expected[row], width, integral), distance, "scanRows distance",
+                        width, expected[row], heap.distance(p));
+            }
+        }
+    }
+
+    // Helper method to check computeBlock for a range of queries that is not a multiple of the query block
+    private static void checkBlock(Distance distance, double[] rows, double[] queries, int width, boolean integral) {
+        int fromQuery = 1;
+        double[] out = new double[(QUERIES - fromQuery) * ROWS];
+        distance.computeBlock(queries, fromQuery, QUERIES, rows, ROWS, width, out);
+        for (int q = fromQuery; q < QUERIES; q++) {
+            for (int row = 0; row < ROWS; row++) {
+                double expected = reference(distance, queries, q * width, rows, row * width, width);
+                double actual = out[(q - fromQuery) * ROWS + row];
+                expect(matches(actual, expected, width, integral), distance, "computeBlock", width, expected, actual);
+            }
+        }
+    }
+
+    // Helper method to check the list-based distances K-Means keeps for its nodes against the same reference
+    private static void checkNodes(double[] rows, int width, boolean integral) {
+        for (int row = 0; row + 1 < ROWS; row += 8) {
+            Node node1 = new Node("a");
+            Node node2 = new Node("b");
+            for (int idx = 0; idx < width; idx++) {
+                node1.addPred(rows[row * width + idx]);
+                node2.addPred(rows[(row + 1) * width + idx]);
+            }
+            double manhattan = reference(Distance.MANHATTAN, rows, row * width, rows, (row + 1) * width, width);
+            double squared = reference(Distance.EUCLIDEAN_SQUARED, rows, row * width, rows, (row + 1) * width, width);
+            expect(matches(KMeans.manh(node1, node2), manhattan, width, integral), Distance.MANHATTAN,
+                    "KMeans.manh", width, manhattan, KMeans.manh(node1, node2));
+            expect(matches(KMeans.e2(node1, node2), squared, width, integral), Distance.EUCLIDEAN_SQUARED,
+                    "KMeans.e2", width, squared, KMeans.e2(node1, node2));
+        }
+    }
+
+    // Helper method to compare a distance with the reference, exactly or within dimension * 2^-52 of it
+    private static boolean matches(double actual, double expected, int width, boolean exact) {
+        if (exact) return actual == expected;
+        return Math.abs(actual - expected) <= width * Math.ulp(1.0) * expected;
+    }
+
+    // Helper method to check a bounded distance: the full distance when it is within the bound, and anything above
+    // the bound otherwise. Real distances within the tolerance of the bound may go either way
+    private static boolean obeysBound(double actual, double expected, double bound, int width, boolean exact) {
+        double tolerance = exact ? 0 : width * Math.ulp(1.0) * expected;
+        if (expected <= bound - tolerance) return matches(actual, expected, width, exact);
+        if (expected > bound + tolerance) return actual > bound;
+        return true;
+    }
+
+    // Helper method to count a comparison and report it if it failed
+    private static void expect(boolean ok, Distance distance, String check, int width, double expected,
+                               double actual) {
+        comparisons++;
+        if (ok) return;
+        if (++mismatches <= MAX_REPORTED) {
+            System.out.println("Mismatch " + distance.getName() + " (" + distance.getKernel() + ") " + check
+                    + " width=" + width + ": expected " + expected + " got " + actual);
+        }
+    }
+}
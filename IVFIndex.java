@@ -0,0 +1,159 @@
+import java.io.*;
+import java.util.*;
+
+// Class representing an inverted-file index for approximate nearest neighbour search
+// Training rows are bucketed by their nearest KMeans centroid and a query only scans the closest buckets
+public class IVFIndex {
+    private static final int TRAINING_ITERATIONS = 20;  // Lloyd iterations used to place the centroids
+    private static final long SEED = 42;                // Seed for picking the initial centroids
+
+    private final int width;            // Number of features per row
+    private final Distance distance;    // Distance used for bucketing and scanning
+    private final int nprobe;           // Number of buckets scanned per query
+    private final double[][] centroids; // Bucket centroids
+    private final int[] listStart;       // Bucket b covers positions [listStart[b], listStart[b + 1])
+    private final double[] points;       // Rows reordered so that every bucket is contiguous
+    private final int[] rowIndex;        // Position in points -> row in the original dataset
+
+    // Constructor to build the index with nlist buckets (0 picks sqrt(rows)) probing nprobe of them per query
+    public IVFIndex(Dataset data, Distance distance, int nlist, int nprobe) {
+        this.width = data.getNumFeatures();
+        this.distance = distance;
+        int numRows = data.size();
+        double[] values = data.getValues();
+        if (nlist <= 0) nlist = (int) Math.max(1, Math.round(Math.sqrt(numRows)));
+        nlist = numRows == 0 ? 0 : Math.min(nlist, numRows);
+        this.nprobe = Math.max(1, Math.min(nprobe, nlist));
+
+        // Seed the centroids with distinct random rows and refine them with KMeans
+        this.centroids = new double[nlist][];
+        int[] order = new int[numRows];
+        for (int i = 0; i < numRows; i++) order[i] = i;
+        Random random = new Random(SEED);
+        for (int i = 0; i < nlist; i++) {
+            int pick = i + random.nextInt(numRows - i);
+            int tmp = order[i];
+            order[i] = order[pick];
+            order[pick] = tmp;
+            centroids[i] = data.getRow(order[i]);
+        }
+        int[] assignment = new int[numRows];
+        if (numRows > 0) KMeans.cluster(data, centroids, distance, assignment, TRAINING_ITERATIONS);
+
+        // Bucket every row under its nearest final centroid
+        int[] counts = new int[nlist];
+        double[] buffer = new double[width];
+        for (int row = 0; row < numRows; row++) {
+            System.arraycopy(values, row * width, buffer, 0, width);
+            assignment[row] = nearestCentroid(buffer);
+            counts[assignment[row]]++;
+        }
+        this.listStart = new int[nlist + 1];
+        for (int b = 0; b < nlist; b++) listStart[b + 1] = listStart[b] + counts[b];
+        int[] next = Arrays.copyOf(listStart, nlist);
+        this.rowIndex = new int[numRows];
+        this.points = new double[numRows * width];
+        for (int row = 0; row < numRows; row++) {
+            int pos = next[assignment[row]]++;
+            rowIndex[pos] = row;
+            System.arraycopy(values, row * width, points, pos * width, width);
+        }
+    }
+
+    // Constructor to restore an index written by writeTo
+    private IVFIndex(int width, Distance distance, int nprobe, double[][] centroids, int[] listStart, double[] points,
+                     int[] rowIndex) {
+        this.width = width;
+        this.distance = distance;
+        this.nprobe = nprobe;
+        this.centroids = centroids;
+        this.listStart = listStart;
+        this.points = points;
+        this.rowIndex = rowIndex;
+    }
+
+    // Method to write the index to a model file
+    public void writeTo(ModelFile.Output out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(nprobe);
+        out.writeInt(centroids.length);
+        for (double[] centroid : centroids) out.writeDoubles(centroid, centroid.length);
+        out.writeInts(listStart, listStart.length);
+        out.writeDoubles(points, points.length);
+        out.writeInts(rowIndex, rowIndex.length);
+    }
+
+    // Method to read an index written by writeTo over numRows rows of the given width, checking that it is well formed
+    public static IVFIndex readFrom(ModelFile.Input in, Distance distance, int width, int numRows) throws IOException {
+        int savedWidth = in.readInt();
+        int nprobe = in.readInt();
+        double[][] centroids = new double[in.readCount(4)][];
+        for (int b = 0; b < centroids.length; b++) centroids[b] = in.readDoubles();
+        IVFIndex ivf = new IVFIndex(savedWidth, distance, nprobe, centroids, in.readInts(), in.readDoubles(),
+                in.readInts());
+        if (!ivf.isValid(width, numRows)) throw new IOException("Corrupt model file: malformed IVF index");
+        return ivf;
+    }
+
+    // Helper method to check that a restored index buckets numRows rows of the given width
+    private boolean isValid(int width, int numRows) {
+        int nlist = centroids.length;
+        if (this.width != width || nprobe != Math.max(1, Math.min(nprobe, nlist)) || listStart.length != nlist + 1
+                || rowIndex.length != numRows || points.length != (long) numRows * Math.max(width, 0)
+                || listStart[0] != 0 || listStart[nlist] != numRows) {
+            return false;
+        }
+        for (int b = 0; b < nlist; b++) {
+            if (centroids[b].length != width || listStart[b] > listStart[b + 1]) return false;
+        }
+        for (int row : rowIndex) {
+            if (row < 0 || row >= numRows) return false;
+        }
+        return true;
+    }
+
+    // Getter method to retrieve the number of buckets
+    public int getNumLists() {
+        return centroids.length;
+    }
+
+    // Getter method to retrieve the number of buckets scanned per query
+    public int getNumProbes() {
+        return nprobe;
+    }
+
+    // Method to collect the approximate k nearest rows to x into the heap, returning the number of distances computed
+    public int search(double[] x, NeighborHeap heap, NeighborHeap probes) {
+        // Pick the nprobe buckets whose centroids are closest to the query
+        probes.clear();
+        for (int b = 0; b < centroids.length; b++) {
+            probes.offer(distance.compute(x, 0, centroids[b], 0, width, probes.worst()), b);
+        }
+
+        // Scan the chosen buckets
+        int computed = centroids.length;
+        for (int p = 0; p < probes.size(); p++) {
+            int bucket = probes.index(p);
+            for (int pos = listStart[bucket]; pos < listStart[bucket + 1]; pos++) {
+                double dist = distance.compute(x, 0, points, pos * width, width, heap.worst());
+                if (dist <= heap.worst()) heap.offer(dist, rowIndex[pos]);
+            }
+            computed += listStart[bucket + 1] - listStart[bucket];
+        }
+        return computed;
+    }
+
+    // Helper method to find the centroid nearest to a row, keeping the lowest index on ties
+    private int nearestCentroid(double[] row) {
+        int best = 0;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int b = 0; b < centroids.length; b++) {
+            double dist = distance.compute(row, 0, centroids[b], 0, width, bestDistance);
+            if (dist < bestDistance) {
+                bestDistance = dist;
+                best = b;
+            }
+        }
+        return best;
+    }
+}
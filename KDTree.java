@@ -0,0 +1,203 @@
+import java.io.*;
+
+// Class representing a KD-tree over the rows of a dataset for exact nearest neighbour search
+public class KDTree {
+    private static final int LEAF_SIZE = 16;  // Maximum number of rows stored in a leaf
+
+    private final int width;          // Number of features per row
+    private final Distance distance;  // Distance the neighbours are ranked by
+    private final double[] points;    // Rows reordered so that every leaf is contiguous
+    private final int[] rowIndex;     // Position in points -> row in the original dataset
+
+    // Flat node storage; a node with splitDim == -1 is a leaf covering [start, end)
+    private int[] splitDim;
+    private double[] splitValue;
+    private int[] left;
+    private int[] right;
+    private int[] start;
+    private int[] end;
+    private int nodeCount;
+
+    // Constructor to build the tree over all rows of the dataset
+    public KDTree(Dataset data, Distance distance) {
+        this.width = data.getNumFeatures();
+        this.distance = distance;
+        int numRows = data.size();
+        double[] values = data.getValues();
+
+        this.rowIndex = new int[numRows];
+        for (int i = 0; i < numRows; i++) rowIndex[i] = i;
+
+        // Every split leaves at least LEAF_SIZE / 2 rows on each side, which bounds the number of leaves
+        int maxNodes = 2 * (numRows / (LEAF_SIZE / 2) + 1);
+        this.splitDim = new int[maxNodes];
+        this.splitValue = new double[maxNodes];
+        this.left = new int[maxNodes];
+        this.right = new int[maxNodes];
+        this.start = new int[maxNodes];
+        this.end = new int[maxNodes];
+        this.nodeCount = 0;
+        build(values, 0, numRows);
+
+        // Copy the rows in leaf order so that leaf scans read contiguous memory
+        this.points = new double[numRows * width];
+        for (int i = 0; i < numRows; i++) {
+            System.arraycopy(values, rowIndex[i] * width, points, i * width, width);
+        }
+    }
+
+    // Constructor to restore a tree written by writeTo
+    private KDTree(int width, Distance distance, double[] points, int[] rowIndex, int[] splitDim, double[] splitValue,
+                   int[] left, int[] right, int[] start, int[] end) {
+        this.width = width;
+        this.distance = distance;
+        this.points = points;
+        this.rowIndex = rowIndex;
+        this.splitDim = splitDim;
+        this.splitValue = splitValue;
+        this.left = left;
+        this.right = right;
+        this.start = start;
+        this.end = end;
+        this.nodeCount = splitDim.length;
+    }
+
+    // Method to write the tree to a model file
+    public void writeTo(ModelFile.Output out) throws IOException {
+        out.writeInt(width);
+        out.writeDoubles(points, points.length);
+        out.writeInts(rowIndex, rowIndex.length);
+        out.writeInts(splitDim, nodeCount);
+        out.writeDoubles(splitValue, nodeCount);
+        out.writeInts(left, nodeCount);
+        out.writeInts(right, nodeCount);
+        out.writeInts(start, nodeCount);
+        out.writeInts(end, nodeCount);
+    }
+
+    // Method to read a tree written by writeTo over numRows rows of the given width, checking that it is well formed
+    public static KDTree readFrom(ModelFile.Input in, Distance distance, int width, int numRows) throws IOException {
+        KDTree tree = new KDTree(in.readInt(), distance, in.readDoubles(), in.readInts(), in.readInts(),
+                in.readDoubles(), in.readInts(), in.readInts(), in.readInts(), in.readInts());
+        if (!tree.isValid(width, numRows)) throw new IOException("Corrupt model file: malformed KD-tree");
+        return tree;
+    }
+
+    // Helper method to check that a restored tree covers numRows rows of the given width and that every child
+    // comes after its parent, so a search always ends
+    private boolean isValid(int width, int numRows) {
+        if (this.width != width || rowIndex.length != numRows || points.length != (long) numRows * Math.max(width, 0)
+                || (numRows > 0 && nodeCount == 0)) {
+            return false;
+        }
+        for (int[] nodes : new int[][]{left, right, start, end}) {
+            if (nodes.length != nodeCount) return false;
+        }
+        if (splitValue.length != nodeCount) return false;
+        for (int row : rowIndex) {
+            if (row < 0 || row >= numRows) return false;
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            if (start[node] < 0 || start[node] > end[node] || end[node] > numRows) return false;
+            if (splitDim[node] < -1 || splitDim[node] >= width) return false;
+            if (splitDim[node] >= 0 && (left[node] <= node || left[node] >= nodeCount
+                    || right[node] <= node || right[node] >= nodeCount)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Method to collect the exact k nearest rows to x into the heap, returning the number of distances computed
+    public int search(double[] x, NeighborHeap heap) {
+        return rowIndex.length > 0 ? search(0, x, heap) : 0;
+    }
+
+    // Helper method to search a subtree, visiting the nearer child first, and count the distances computed
+    private int search(int node, double[] x, NeighborHeap heap) {
+        int dim = splitDim[node];
+        if (dim < 0) {
+            for (int p = start[node]; p < end[node]; p++) {
+                double dist = distance.compute(x, 0, points, p * width, width, heap.worst());
+                if (dist <= heap.worst()) heap.offer(dist, rowIndex[p]);
+            }
+            return end[node] - start[node];
+        }
+
+        double diff = x[dim] - splitValue[node];
+        int near = diff < 0 ? left[node] : right[node];
+        int far = diff < 0 ? right[node] : left[node];
+        int computed = search(near, x, heap);
+        // Rows on the far side are at least axisBound(diff) away; equal distances may still win on row index
+        if (distance.axisBound(diff) <= heap.worst()) {
+            computed += search(far, x, heap);
+        }
+        return computed;
+    }
+
+    // Helper method to build the subtree over rowIndex[from, to) and return its node id
+    private int build(double[] values, int from, int to) {
+        int node = nodeCount++;
+        start[node] = from;
+        end[node] = to;
+        if (to - from <= LEAF_SIZE) {
+            splitDim[node] = -1;
+            return node;
+        }
+
+        // Split on the dimension with the largest spread
+        int bestDim = 0;
+        double bestSpread = -1;
+        for (int j = 0; j < width; j++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int p = from; p < to; p++) {
+                double v = values[rowIndex[p] * width + j];
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            if (max - min > bestSpread) {
+                bestSpread = max - min;
+                bestDim = j;
+            }
+        }
+        if (bestSpread <= 0) {
+            // Every row in this range is identical, so it cannot be split further
+            splitDim[node] = -1;
+            return node;
+        }
+
+        int mid = (from + to) >>> 1;
+        select(values, bestDim, from, to - 1, mid);
+        splitDim[node] = bestDim;
+        splitValue[node] = values[rowIndex[mid] * width + bestDim];
+        int leftChild = build(values, from, mid);
+        int rightChild = build(values, mid, to);
+        left[node] = leftChild;
+        right[node] = rightChild;
+        return node;
+    }
+
+    // Helper method to partially order rowIndex[lo..hi] so that position nth holds its median along dim
+    private void select(double[] values, int dim, int lo, int hi, int nth) {
+        while (lo < hi) {
+            double pivot = values[rowIndex[(lo + hi) >>> 1] * width + dim];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (values[rowIndex[i] * width + dim] < pivot) i++;
+                while (values[rowIndex[j] * width + dim] > pivot) j--;
+                if (i <= j) {
+                    int tmp = rowIndex[i];
+                    rowIndex[i] = rowIndex[j];
+                    rowIndex[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (nth <= j) hi = j;
+            else if (nth >= i) lo = i;
+            else return;
+        }
+    }
+}
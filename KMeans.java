@@ -1,3 +1,4 @@
+import java.io.*;
 import java.text.*;
 import java.util.*;
 
@@ -25,48 +26,49 @@ class Pair<K, V> {
 
 // Class representing the KMeans algorithm
 public class KMeans {
+    // Number of rows whose distances to every centroid Lloyd's assignment step computes at a time
+    private static final int ASSIGN_BLOCK = 64;
 
     // Method to calculate Manhattan distance between two nodes
     public static double manh(Node node1, Node node2) {
-        return node1.getPredList().stream()
-                .mapToDouble((e1) -> Math.abs(e1 - node2.getPredList().get(node1.getPredList().indexOf(e1))))
-                .sum();
+        double totalSum = 0;
+        for (int idx = 0; idx < node1.getPredList().size(); idx++) {
+            totalSum += Math.abs(node1.getPredList().get(idx) - node2.getPredList().get(idx));
+        }
+        return totalSum;
     }
 
     // Method to calculate Euclidean distance squared between two nodes
     public static double e2(Node node1, Node node2) {
         double totalSum = 0;
         for (int idx = 0; idx < node1.getPredList().size(); idx++) {
-            totalSum += Math.pow(node1.getPredList().get(idx) - node2.getPredList().get(idx), 2);
+            double diff = node1.getPredList().get(idx) - node2.getPredList().get(idx);
+            totalSum += diff * diff;
         }
         return totalSum;
     }
 
     // Method to convert input graph data into a list of nodes
     public static List<Node> setNodes(String graphData) {
-        List<Node> nodeList = new ArrayList<>();
-        String[] splitData = graphData.split("\n");
+        Dataset dataset = setDataset(graphData);
+        List<Node> nodeList = new ArrayList<>(dataset.size());
 
-        for (String line : splitData) {
-            line = line.replace(",", " ");
-            line = line.trim();
-            if (line.isEmpty() || line.charAt(0) == '#') {
-                continue;
+        for (int row = 0; row < dataset.size(); row++) {
+            Node currentNode = new Node(dataset.getLabel(row));
+            for (int i = 0; i < dataset.getNumFeatures(); i++) {
+                currentNode.addPred(dataset.get(row, i));
             }
-
-            String[] tokens = line.split("\\s+");
-            Node currentNode = new Node(tokens[tokens.length - 1]);
-
-            for (int i = 0; i < tokens.length - 1; i++) {
-                currentNode.addPred(Integer.parseInt(tokens[i]));
-            }
-
             nodeList.add(currentNode);
         }
 
         return nodeList;
     }
 
+    // Method to convert input graph data into a dataset, using the last token of each line as its label
+    public static Dataset setDataset(String graphData) {
+        return CsvLoader.parse(graphData, CsvLoader.Format.KMEANS);
+    }
+
     // Method to convert centroid arguments into a list of nodes
     public static List<Node> setCentroids(List<String> centroidArgs) {
         List<Node> centroidList = new ArrayList<>();
@@ -85,96 +87,599 @@ public class KMeans {
         return centroidList;
     }
 
+    // Method to pick k centroids from the data with k-means++ or k-means||, named C1 to Ck like centroid arguments
+    public static List<Node> seedCentroids(Dataset data, int k, String distanceFn, KMeansSeeder.Method method,
+                                           long seed, int threads) {
+        Distance distance = Distance.forName(distanceFn);
+        if (distance == null) {
+            System.out.println("Incorrect distance function provided for K-Means. Check README for more details.");
+            System.exit(0);
+        }
+        if (k > data.size()) {
+            System.out.println("Number of clusters for K-Means must not exceed the number of nodes. Check README for more details.");
+            System.exit(0);
+        }
+
+        double[][] seeds = KMeansSeeder.seed(data, k, distance, method, seed, threads);
+        List<Node> centroidList = new ArrayList<>();
+        for (int idx = 0; idx < k; idx++) {
+            Node currentNode = new Node("C" + (idx + 1));
+            for (double coord : seeds[idx]) {
+                currentNode.addPred(coord);
+            }
+            centroidList.add(currentNode);
+        }
+        return centroidList;
+    }
+
     // Method to run the KMeans algorithm
     public static void runKMeans(List<Node> dataList, List<Node> centroidList, String distanceFn) {
+        runKMeans(Dataset.fromNodes(dataList), centroidList, distanceFn);
+    }
+
+    // Method to run the KMeans algorithm on a dataset whose labels are the node identities
+    public static void runKMeans(Dataset data, List<Node> centroidList, String distanceFn) {
+        runKMeans(data, centroidList, distanceFn, 1);
+    }
+
+    // Method to run the KMeans algorithm on a dataset with the assignment step spread over several threads
+    public static void runKMeans(Dataset data, List<Node> centroidList, String distanceFn, int threads) {
+        runKMeans(data, centroidList, distanceFn, threads, false);
+    }
+
+    // Method to run the KMeans algorithm, optionally skipping distance computations with Hamerly's bounds
+    public static void runKMeans(Dataset data, List<Node> centroidList, String distanceFn, int threads,
+                                 boolean accelerated) {
+        runKMeans(data, centroidList, distanceFn, threads, accelerated, false);
+    }
+
+    // Method to run the KMeans algorithm, printing the number of iterations and the final inertia when report is set
+    public static void runKMeans(Dataset data, List<Node> centroidList, String distanceFn, int threads,
+                                 boolean accelerated, boolean report) {
+        Distance distance = Distance.forName(distanceFn);
+        if (distance == null) {
+            System.out.println("Incorrect distance function provided for K-Means. Check README for more details.");
+            System.exit(0);
+        }
+
         int kValue = centroidList.size();
+        int numRows = data.size();
+        double[][] centroids = toArrays(centroidList);
+
+        int[] assignment = new int[numRows];
+        ClusterStats stats = new ClusterStats();
+        Stats.Phase clustering = Stats.start("cluster");
+        if (accelerated) clusterHamerly(data, centroids, distance, assignment, Integer.MAX_VALUE, threads, stats);
+        else cluster(data, centroids, distance, assignment, Integer.MAX_VALUE, threads, stats);
+        clustering.end((long) stats.getIterations() * numRows);
+
+        // Collect the identities of the nodes in each cluster
+        List<StringBuilder> members = new ArrayList<>();
+        for (int i = 0; i < kValue; i++) members.add(new StringBuilder());
+        for (int row = 0; row < numRows; row++) {
+            StringBuilder cluster = members.get(assignment[row]);
+            if (cluster.length() > 0) cluster.append(",");
+            cluster.append(data.getLabel(row));
+        }
+        printClusters(centroidList, centroids, members);
+        if (report || Stats.isEnabled()) stats.inertia = inertia(data, centroids, assignment, distance);
+        if (report) {
+            System.out.println("Iterations=" + stats.getIterations() + " Inertia="
+                    + new DecimalFormat("0.#############").format(stats.getInertia()));
+        }
+        if (Stats.isEnabled()) {
+            for (int i = 0; i < stats.getIterationMillis().size(); i++) {
+                Stats.event("kmeans_iteration", "iteration", i + 1, "wall_ms", stats.getIterationMillis().get(i),
+                        "centroid_shift", stats.getCentroidShifts().get(i));
+            }
+            Stats.event("kmeans", "iterations", stats.getIterations(), "clusters", kValue, "kernel", distance.getKernel(),
+                    "distance_evaluations", stats.getDistanceEvaluations(), "distances_pruned",
+                    stats.getDistancesPruned(), "inertia", stats.getInertia());
+        }
+        if (accelerated) {
+            long possible = stats.getDistanceEvaluations() + stats.getDistancesPruned();
+            System.out.printf("Distance computations=%d Pruned=%d/%d (%.1f%%)%n", stats.getDistanceEvaluations(),
+                    stats.getDistancesPruned(), possible, possible == 0 ? 0 : 100.0 * stats.getDistancesPruned() / possible);
+        }
+    }
+
+    // Method to assign every node of a dataset to the nearest of a saved model's centroids without moving them,
+    // printing the clusters in the same format as runKMeans
+    public static void assignClusters(Dataset data, Centroids model) {
+        Distance distance = Distance.forName(model.getDistanceFn());
+        List<Node> centroidList = model.getCentroidList();
+        sanityCheck(data, centroidList);
+        double[][] centroids = toArrays(centroidList);
+        int dimension = data.getNumFeatures();
+        double[] values = data.getValues();
+
+        List<StringBuilder> members = new ArrayList<>();
+        for (int i = 0; i < centroids.length; i++) members.add(new StringBuilder());
+        for (int row = 0; row < data.size(); row++) {
+            int closestCentroid = 0;
+            double closestDistance = Double.POSITIVE_INFINITY;
+            for (int idx = 0; idx < centroids.length; idx++) {
+                double dist = distance.compute(values, row * dimension, centroids[idx], 0, dimension, closestDistance);
+                if (dist < closestDistance) {
+                    closestDistance = dist;
+                    closestCentroid = idx;
+                }
+            }
+            StringBuilder cluster = members.get(closestCentroid);
+            if (cluster.length() > 0) cluster.append(",");
+            cluster.append(data.getLabel(row));
+        }
+        printClusters(centroidList, centroids, members);
+    }
+
+    // Method to copy the coordinates of centroid nodes into primitive arrays
+    static double[][] toArrays(List<Node> centroidList) {
+        double[][] centroids = new double[centroidList.size()][];
+        for (int i = 0; i < centroids.length; i++) {
+            List<Double> predList = centroidList.get(i).getPredList();
+            centroids[i] = new double[predList.size()];
+            for (int idx = 0; idx < predList.size(); idx++) {
+                centroids[i][idx] = predList.get(idx);
+            }
+        }
+        return centroids;
+    }
+
+    // Method to print each cluster's members and then the final centroids, and write the centroids back to the nodes
+    static void printClusters(List<Node> centroidList, double[][] centroids, List<StringBuilder> members) {
+        if (members != null) {
+            for (int i = 0; i < centroids.length; i++) {
+                System.out.println(centroidList.get(i).getIdentity() + " = {" + members.get(i) + "}");
+            }
+        }
+        printCentroids(centroidList, centroids, members == null);
+    }
+
+    // Method to print the final centroids, named only when no cluster members were printed before them, and write
+    // them back to the nodes
+    static void printCentroids(List<Node> centroidList, double[][] centroids, boolean named) {
         List<String> output = new ArrayList<>();
+        DecimalFormat df = new DecimalFormat("0.#############");
+        for (int i = 0; i < centroids.length; i++) {
+            int dimension = centroids[i].length;
+            StringBuilder ans = new StringBuilder(named ? centroidList.get(i).getIdentity() + " ([" : "([");
+            for (int idx = 0; idx < dimension; idx++) {
+                ans.append(df.format(centroids[i][idx]));
+                if (idx != dimension - 1) ans.append(" ");
+            }
+            output.add(ans + "])");
 
-        // Iteratively update centroids until convergence
-        while (true) {
-            Map<Integer, List<Node>> categories = new HashMap<>();
+            // Write the final centroid back to its node
+            List<Double> predList = new ArrayList<>(dimension);
+            for (double val : centroids[i]) predList.add(val);
+            centroidList.get(i).setPredList(predList);
+        }
+
+        // Print the final output
+        for (String s : output) System.out.println(s);
+    }
+
+    // Method to split a line of K-Means input into tokens, returning null for blank and comment lines
+    static String[] tokenize(String line) {
+        line = line.replace(",", " ");
+        line = line.trim();
+        if (line.isEmpty() || line.charAt(0) == '#') {
+            return null;
+        }
+        return line.split("\\s+");
+    }
 
-            // Initialize categories
+    // Method to run Lloyd iterations in place on the centroids until they converge or maxIterations is reached
+    // Returns the number of iterations run; assignment receives the final cluster of every row
+    public static int cluster(Dataset data, double[][] centroids, Distance distance, int[] assignment, int maxIterations) {
+        return cluster(data, centroids, distance, assignment, maxIterations, 1);
+    }
+
+    // Method to run Lloyd iterations with the assignment step sharded across threads
+    // Each shard keeps its own centroid sums, which are reduced in shard order so a thread count always gives the same result
+    public static int cluster(Dataset data, double[][] centroids, Distance distance, int[] assignment,
+                              int maxIterations, int threads) {
+        return cluster(data, centroids, distance, assignment, maxIterations, threads, null);
+    }
+
+    // Method to run sharded Lloyd iterations, recording the work done in stats when it is not null
+    public static int cluster(Dataset data, double[][] centroids, Distance distance, int[] assignment,
+                              int maxIterations, int threads, ClusterStats stats) {
+        int kValue = centroids.length;
+        int numRows = data.size();
+        int dimension = data.getNumFeatures();
+        double[] values = data.getValues();
+        int shards = Math.max(1, Math.min(Parallel.resolveThreads(threads), numRows));
+        int[][] shardCounts = new int[shards][kValue];
+        double[][] shardSums = new double[shards][kValue * dimension];
+        double[] flatCentroids = new double[kValue * dimension];
+        double[][] blockDistances = new double[shards][ASSIGN_BLOCK * kValue];
+        int iterations = 0;
+
+        // Iteratively update centroids until convergence
+        while (iterations < maxIterations) {
+            long started = System.nanoTime();
+            iterations++;
             for (int i = 0; i < kValue; i++) {
-                categories.put(i, new ArrayList<>());
-            }
-
-            // Assign each node to the closest centroid
-            for (Node node : dataList) {
-                List<Pair<Integer, Double>> distances = new ArrayList<>();
-                for (int idx = 0; idx < kValue; idx++) {
-                    if (distanceFn.equals("manh")) distances.add(new Pair<>(idx, manh(node, centroidList.get(idx))));
-                    else if (distanceFn.equals("e2")) distances.add(new Pair<>(idx, e2(node, centroidList.get(idx))));
-                    else {
-                        System.out.println("Incorrect distance function provided for K-Means. Check README for more details.");
-                        System.exit(0);
+                System.arraycopy(centroids[i], 0, flatCentroids, i * dimension, dimension);
+            }
+
+            // Assign each node to the closest centroid, keeping the lowest index on ties
+            Parallel.forRange(shards, threads, (fromShard, toShard) -> {
+                for (int shard = fromShard; shard < toShard; shard++) {
+                    int[] counts = shardCounts[shard];
+                    double[] sums = shardSums[shard];
+                    Arrays.fill(counts, 0);
+                    Arrays.fill(sums, 0);
+                    int from = (int) ((long) numRows * shard / shards);
+                    int to = (int) ((long) numRows * (shard + 1) / shards);
+                    for (int row = from; row < to; row++) {
+                        // Distances from a block of rows to every centroid are computed together
+                        int blockRow = (row - from) % ASSIGN_BLOCK;
+                        if (blockRow == 0) {
+                            distance.computeBlock(values, row, Math.min(to, row + ASSIGN_BLOCK), flatCentroids,
+                                    kValue, dimension, blockDistances[shard]);
+                        }
+                        int offset = row * dimension;
+                        int closestCentroid = 0;
+                        double closestDistance = Double.POSITIVE_INFINITY;
+                        for (int idx = 0; idx < kValue; idx++) {
+                            double dist = blockDistances[shard][blockRow * kValue + idx];
+                            if (dist < closestDistance) {
+                                closestDistance = dist;
+                                closestCentroid = idx;
+                            }
+                        }
+                        assignment[row] = closestCentroid;
+                        counts[closestCentroid]++;
+                        int sumOffset = closestCentroid * dimension;
+                        for (int idx = 0; idx < dimension; idx++) {
+                            sums[sumOffset + idx] += values[offset + idx];
+                        }
                     }
                 }
-                distances.sort(Comparator.comparingDouble(Pair::getValue));
+            });
 
-                int closestCentroid = distances.get(0).getKey();
-                categories.get(closestCentroid).add(node);
-            }
+            double[][] previous = stats != null ? centroids.clone() : null;
+            boolean exitFlag = updateCentroids(data, assignment, distance, centroids, shardCounts, shardSums,
+                    dimension);
+            if (stats != null) stats.recordIteration(started, exitFlag ? 0 : maxShift(previous, centroids, distance));
+            if (exitFlag) break;
+        }
+        if (stats != null) {
+            stats.iterations += iterations;
+            stats.distanceEvaluations += (long) iterations * numRows * kValue;
+        }
+        return iterations;
+    }
 
-            boolean exitFlag = true;
+    // Method to run Lloyd iterations accelerated with Hamerly's bounds, giving the same clusters as cluster
+    // Each row keeps an upper bound on the distance to its centroid and a lower bound on the distance to any other
+    // centroid; when the bounds show the assignment cannot change, the row's distances are not computed at all
+    public static int clusterHamerly(Dataset data, double[][] centroids, Distance distance, int[] assignment,
+                                     int maxIterations, int threads, ClusterStats stats) {
+        int kValue = centroids.length;
+        int numRows = data.size();
+        int dimension = data.getNumFeatures();
+        double[] values = data.getValues();
+        int shards = Math.max(1, Math.min(Parallel.resolveThreads(threads), numRows));
+        int[][] shardCounts = new int[shards][kValue];
+        double[][] shardSums = new double[shards][kValue * dimension];
+        long[] shardEvaluations = new long[shards];
+        double[] flatCentroids = new double[kValue * dimension];
+        double[] upper = new double[numRows];     // Upper bound on the metric distance to the assigned centroid
+        double[] lower = new double[numRows];     // Lower bound on the metric distance to every other centroid
+        double[] half = new double[kValue];       // Half the metric distance from each centroid to its nearest other centroid
+        double[] moves = new double[kValue];      // Metric distance each centroid moved in the last update
+        long evaluations = 0;
+        int iterations = 0;
 
-            // Update centroids based on assigned nodes
+        // Iteratively update centroids until convergence
+        while (iterations < maxIterations) {
+            long started = System.nanoTime();
+            boolean firstPass = iterations == 0;
+            iterations++;
             for (int i = 0; i < kValue; i++) {
-                if (categories.get(i).isEmpty()) {
-                    continue;
+                System.arraycopy(centroids[i], 0, flatCentroids, i * dimension, dimension);
+            }
+
+            // A centroid closer than half the gap to every other centroid is certainly the closest
+            Arrays.fill(half, Double.POSITIVE_INFINITY);
+            for (int i = 0; i < kValue; i++) {
+                for (int j = i + 1; j < kValue; j++) {
+                    double gap = 0.5 * distance.toMetric(distance.compute(centroids[i], centroids[j]));
+                    half[i] = Math.min(half[i], gap);
+                    half[j] = Math.min(half[j], gap);
                 }
+            }
+            evaluations += (long) kValue * (kValue - 1) / 2;
+
+            // Assign each node to the closest centroid, keeping the lowest index on ties
+            Parallel.forRange(shards, threads, (fromShard, toShard) -> {
+                for (int shard = fromShard; shard < toShard; shard++) {
+                    int[] counts = shardCounts[shard];
+                    double[] sums = shardSums[shard];
+                    Arrays.fill(counts, 0);
+                    Arrays.fill(sums, 0);
+                    long computed = 0;
+                    int from = (int) ((long) numRows * shard / shards);
+                    int to = (int) ((long) numRows * (shard + 1) / shards);
+                    for (int row = from; row < to; row++) {
+                        int offset = row * dimension;
+                        boolean rescan = firstPass;
+                        if (!rescan) {
+                            double bound = Math.max(half[assignment[row]], lower[row]);
+                            if (!isSeparated(upper[row], bound)) {
+                                // Tighten the upper bound before falling back to a full scan
+                                upper[row] = distance.toMetric(distance.compute(values, offset, flatCentroids,
+                                        assignment[row] * dimension, dimension));
+                                computed++;
+                                rescan = !isSeparated(upper[row], bound);
+                            }
+                        }
+                        if (rescan) {
+                            int closestCentroid = 0;
+                            double closestDistance = Double.POSITIVE_INFINITY;
+                            double secondDistance = Double.POSITIVE_INFINITY;
+                            for (int idx = 0; idx < kValue; idx++) {
+                                double dist = distance.compute(values, offset, flatCentroids, idx * dimension,
+                                        dimension, secondDistance);
+                                if (dist < closestDistance) {
+                                    secondDistance = closestDistance;
+                                    closestDistance = dist;
+                                    closestCentroid = idx;
+                                } else if (dist < secondDistance) {
+                                    secondDistance = dist;
+                                }
+                            }
+                            computed += kValue;
+                            assignment[row] = closestCentroid;
+                            upper[row] = distance.toMetric(closestDistance);
+                            lower[row] = distance.toMetric(secondDistance);
+                        }
 
-                Node curCentroid = centroidList.get(i);
-                int dimension = curCentroid.getPredList().size();
-                List<Double> newCentroid = new ArrayList<>();
-                for (int idx = 0; idx < dimension; idx++) {
-                    double sum = 0;
-                    for (Node node : categories.get(i)) {
-                        sum += node.getPredList().get(idx);
+                        int closestCentroid = assignment[row];
+                        counts[closestCentroid]++;
+                        int sumOffset = closestCentroid * dimension;
+                        for (int idx = 0; idx < dimension; idx++) {
+                            sums[sumOffset + idx] += values[offset + idx];
+                        }
                     }
-                    newCentroid.add(sum / categories.get(i).size());
+                    shardEvaluations[shard] = computed;
                 }
+            });
+            for (long computed : shardEvaluations) evaluations += computed;
 
-                // Check for convergence
-                List<Double> diff = new ArrayList<>();
-                for (int idx = 0; idx < dimension; idx++) {
-                    diff.add(Math.abs(curCentroid.getPredList().get(idx) - newCentroid.get(idx)));
-                }
+            double[][] previous = centroids.clone();
+            boolean exitFlag = updateCentroids(data, assignment, distance, centroids, shardCounts, shardSums,
+                    dimension);
+            if (exitFlag) {
+                if (stats != null) stats.recordIteration(started, 0);
+                break;
+            }
 
-                if (diff.stream().mapToDouble(Double::doubleValue).sum() > 0.00001) {
-                    exitFlag = false;
-                    curCentroid.setPredList(newCentroid);
+            // Loosen the bounds by how far the centroids moved
+            double maxMove = 0;
+            double secondMove = 0;
+            int maxMoved = -1;
+            for (int i = 0; i < kValue; i++) {
+                moves[i] = centroids[i] == previous[i] ? 0 : distance.toMetric(distance.compute(previous[i], centroids[i]));
+                if (moves[i] > maxMove) {
+                    secondMove = maxMove;
+                    maxMove = moves[i];
+                    maxMoved = i;
+                } else if (moves[i] > secondMove) {
+                    secondMove = moves[i];
                 }
             }
+            evaluations += kValue;
+            for (int row = 0; row < numRows; row++) {
+                upper[row] += moves[assignment[row]];
+                lower[row] -= assignment[row] == maxMoved ? secondMove : maxMove;
+            }
+            if (stats != null) stats.recordIteration(started, maxMove);
+        }
 
-            // If converged, print results and exit
-            if (exitFlag) {
-                for (int i = 0; i < kValue; i++) {
-                    System.out.print(centroidList.get(i).getIdentity() + " = {");
-                    List<Node> categoryNodes = categories.get(i);
-                    for (int j = 0; j < categoryNodes.size(); j++) {
-                        System.out.print(categoryNodes.get(j).getIdentity());
-                        if (j < categoryNodes.size() - 1) {
-                            System.out.print(",");
-                        }
-                    }
-                    System.out.println("}");
-                    DecimalFormat df = new DecimalFormat("0.#############");
-                    int predSize = centroidList.get(i).getPredList().size();
-                    StringBuilder ans = new StringBuilder("([");
-                    for (int idx = 0; idx < predSize; idx++) {
-                        double val = centroidList.get(i).getPredList().get(idx);
-                        ans.append(df.format(val));
-                        if (idx != predSize - 1) ans.append(" ");
-                    }
-                    output.add(ans + "])");
+        if (stats != null) {
+            stats.iterations += iterations;
+            stats.distanceEvaluations += evaluations;
+            stats.distancesPruned += Math.max(0, (long) iterations * numRows * kValue - evaluations);
+        }
+        return iterations;
+    }
+
+    // Helper method to find the farthest any centroid moved in an update, as a metric distance
+    private static double maxShift(double[][] previous, double[][] centroids, Distance distance) {
+        double shift = 0;
+        for (int i = 0; i < centroids.length; i++) {
+            if (centroids[i] != previous[i]) {
+                shift = Math.max(shift, distance.toMetric(distance.compute(previous[i], centroids[i])));
+            }
+        }
+        return shift;
+    }
+
+    // Helper method to check whether an upper bound is safely below a lower bound despite rounding in the bounds
+    private static boolean isSeparated(double upper, double lower) {
+        return upper < lower * (1 - 1e-9);
+    }
+
+    // Helper method to reduce the per-shard sums into new centroids and report whether every centroid has converged
+    // A centroid left without rows is moved onto the row farthest from its own centroid
+    private static boolean updateCentroids(Dataset data, int[] assignment, Distance distance, double[][] centroids,
+                                           int[][] shardCounts, double[][] shardSums, int dimension) {
+        boolean exitFlag = true;
+        List<Integer> emptyClusters = new ArrayList<>();
+
+        // Update centroids based on assigned nodes
+        for (int i = 0; i < centroids.length; i++) {
+            int count = 0;
+            for (int[] counts : shardCounts) count += counts[i];
+            if (count == 0) {
+                emptyClusters.add(i);
+                continue;
+            }
+
+            double diff = 0;
+            double[] newCentroid = new double[dimension];
+            for (int idx = 0; idx < dimension; idx++) {
+                double sum = 0;
+                for (double[] sums : shardSums) sum += sums[i * dimension + idx];
+                newCentroid[idx] = sum / count;
+                diff += Math.abs(centroids[i][idx] - newCentroid[idx]);
+            }
+
+            // Check for convergence
+            if (diff > 0.00001) {
+                exitFlag = false;
+                centroids[i] = newCentroid;
+            }
+        }
+
+        if (!emptyClusters.isEmpty() && reseedEmptyClusters(data, assignment, distance, centroids, emptyClusters)) {
+            exitFlag = false;
+        }
+        return exitFlag;
+    }
+
+    // Helper method to move each empty cluster's centroid onto a distinct row, taking the rows farthest from their
+    // assigned centroids first (lowest row on ties), and report whether any centroid moved
+    // Rows already sitting on their centroid are never used, so identical rows cannot make clusters empty forever
+    private static boolean reseedEmptyClusters(Dataset data, int[] assignment, Distance distance, double[][] centroids,
+                                               List<Integer> emptyClusters) {
+        int numRows = data.size();
+        int dimension = data.getNumFeatures();
+        double[] values = data.getValues();
+        double[] farDistance = new double[numRows];
+        for (int row = 0; row < numRows; row++) {
+            double[] centroid = centroids[assignment[row]];
+            farDistance[row] = distance.compute(values, row * dimension, centroid, 0, dimension);
+        }
+
+        boolean moved = false;
+        for (int cluster : emptyClusters) {
+            int farthest = -1;
+            for (int row = 0; row < numRows; row++) {
+                if (farDistance[row] > 0 && (farthest < 0 || farDistance[row] > farDistance[farthest])) farthest = row;
+            }
+            if (farthest < 0) break;
+            centroids[cluster] = Arrays.copyOfRange(values, farthest * dimension, (farthest + 1) * dimension);
+            moved = true;
+
+            // Rows on top of the new centroid are no longer candidates for the next empty cluster
+            for (int row = 0; row < numRows; row++) {
+                if (farDistance[row] > 0
+                        && distance.compute(values, row * dimension, centroids[cluster], 0, dimension) == 0) {
+                    farDistance[row] = 0;
                 }
-                break;
             }
         }
+        return moved;
+    }
 
-        // Print the final output
-        for (String s : output) System.out.println(s);
+    // Method to compute the inertia of a clustering, the sum of distances from every row to its assigned centroid
+    public static double inertia(Dataset data, double[][] centroids, int[] assignment, Distance distance) {
+        int dimension = data.getNumFeatures();
+        double[] values = data.getValues();
+        double total = 0;
+        for (int row = 0; row < data.size(); row++) {
+            total += distance.compute(values, row * dimension, centroids[assignment[row]], 0, dimension);
+        }
+        return total;
+    }
+
+    // Class representing a saved KMeans model: the final centroids and the distance they were found with
+    public static class Centroids {
+        private final String distanceFn;         // Command line name of the distance
+        private final List<Node> centroidList;   // Centroid nodes with their identities and coordinates
+
+        // Constructor to wrap the centroids of a finished run
+        public Centroids(String distanceFn, List<Node> centroidList) {
+            this.distanceFn = distanceFn;
+            this.centroidList = centroidList;
+        }
+
+        // Getter method to retrieve the name of the distance
+        public String getDistanceFn() {
+            return distanceFn;
+        }
+
+        // Getter method to retrieve the centroid nodes
+        public List<Node> getCentroidList() {
+            return centroidList;
+        }
+
+        // Method to write the centroids to a model file
+        public void writeTo(ModelFile.Output out) throws IOException {
+            out.writeString(distanceFn);
+            out.writeInt(centroidList.size());
+            for (Node node : centroidList) {
+                out.writeString(node.getIdentity());
+                double[] coords = new double[node.getPredList().size()];
+                for (int idx = 0; idx < coords.length; idx++) coords[idx] = node.getPredList().get(idx);
+                out.writeDoubles(coords, coords.length);
+            }
+        }
+
+        // Method to read centroids written by writeTo
+        public static Centroids readFrom(ModelFile.Input in) throws IOException {
+            String distanceFn = in.readString();
+            if (Distance.forName(distanceFn) == null) throw new IOException("Unknown distance " + distanceFn);
+            int count = in.readCount(8);
+            List<Node> centroidList = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Node node = new Node(in.readString());
+                for (double coord : in.readDoubles()) node.addPred(coord);
+                centroidList.add(node);
+            }
+            return new Centroids(distanceFn, centroidList);
+        }
+    }
+
+    // Class to record how much work a clustering run did
+    public static class ClusterStats {
+        private int iterations;              // Number of Lloyd iterations
+        private long distanceEvaluations;    // Number of distances computed
+        private long distancesPruned;        // Number of row-to-centroid distances skipped thanks to bounds
+        private double inertia;              // Sum of distances from every row to its final centroid
+        private final List<Double> iterationMillis = new ArrayList<>();  // Wall time of each iteration
+        private final List<Double> centroidShifts = new ArrayList<>();   // Farthest any centroid moved in each iteration
+
+        // Method to record the wall time since an iteration started and how far the centroids moved in it
+        private void recordIteration(long startNanos, double shift) {
+            iterationMillis.add((System.nanoTime() - startNanos) / 1e6);
+            centroidShifts.add(shift);
+        }
+
+        // Getter method to retrieve the number of iterations
+        public int getIterations() {
+            return iterations;
+        }
+
+        // Getter method to retrieve the number of distances computed
+        public long getDistanceEvaluations() {
+            return distanceEvaluations;
+        }
+
+        // Getter method to retrieve the number of distances skipped
+        public long getDistancesPruned() {
+            return distancesPruned;
+        }
+
+        // Getter method to retrieve the inertia of the final clustering
+        public double getInertia() {
+            return inertia;
+        }
+
+        // Getter method to retrieve the wall time of each iteration in milliseconds
+        public List<Double> getIterationMillis() {
+            return iterationMillis;
+        }
+
+        // Getter method to retrieve the farthest any centroid moved in each iteration
+        public List<Double> getCentroidShifts() {
+            return centroidShifts;
+        }
     }
 
     // Method to perform sanity check on input data and centroids
@@ -197,4 +702,17 @@ public class KMeans {
             }
         }
     }
+
+    // Method to perform sanity check on a dataset and centroids
+    public static void sanityCheck(Dataset kMeansData, List<Node> centroidList) {
+        int dimension = kMeansData.getNumFeatures();
+
+        // Check dimension consistency for K-Means centroids
+        for (Node node : centroidList) {
+            if (node.getPredList().size() != dimension) {
+                System.out.println("Incorrect dimensions for K-Means centroid arguments. Check README for more details.");
+                System.exit(0);
+            }
+        }
+    }
 }
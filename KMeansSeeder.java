@@ -0,0 +1,170 @@
+import java.util.*;
+
+// Class for picking initial KMeans centroids from the data with k-means++ or its parallel variant k-means||
+// Both spread the seeds out by sampling rows in proportion to their distance from the seeds picked so far,
+// and both are deterministic for a given seed whatever the number of threads
+public class KMeansSeeder {
+    private static final int PARALLEL_ROUNDS = 5;  // Sampling rounds used by k-means||
+
+    // Enum for the available seeding methods
+    public enum Method {
+        PLUS_PLUS,  // k-means++: one pass over the data per centroid
+        PARALLEL    // k-means||: a few passes that each oversample many candidates, then k-means++ over the candidates
+    }
+
+    // Method to pick k initial centroids from the rows of a dataset
+    public static double[][] seed(Dataset data, int k, Distance distance, Method method, long seed, int threads) {
+        return switch (method) {
+            case PLUS_PLUS -> plusPlus(data, k, distance, seed, threads);
+            case PARALLEL -> parallel(data, k, distance, seed, threads);
+        };
+    }
+
+    // Method to pick k initial centroids with k-means++
+    public static double[][] plusPlus(Dataset data, int k, Distance distance, long seed, int threads) {
+        return weightedPlusPlus(data.getValues(), data.size(), data.getNumFeatures(), null, k, distance,
+                new Random(seed), threads);
+    }
+
+    // Method to pick k initial centroids with k-means||
+    // Each round keeps every row independently with probability proportional to its distance from the candidates,
+    // about 2k rows per round; the candidates are then weighted by how many rows they are closest to and reduced to k
+    public static double[][] parallel(Dataset data, int k, Distance distance, long seed, int threads) {
+        int numRows = data.size();
+        int dimension = data.getNumFeatures();
+        double[] values = data.getValues();
+        double oversampling = 2.0 * k;
+        Random random = new Random(seed);
+
+        // Start from one uniformly chosen row
+        int[] candidates = new int[Math.max(16, 2 * k)];
+        int numCandidates = 0;
+        candidates[numCandidates++] = random.nextInt(numRows);
+        double[] minDistance = new double[numRows];
+        Arrays.fill(minDistance, Double.POSITIVE_INFINITY);
+        updateMinDistance(values, numRows, dimension, candidates, 0, 1, minDistance, distance, threads);
+
+        boolean[] chosen = new boolean[numRows];
+        long roundSeed = random.nextLong();
+        for (int round = 0; round < PARALLEL_ROUNDS; round++) {
+            double total = 0;
+            for (int row = 0; row < numRows; row++) total += minDistance[row];
+            if (total == 0) break;
+
+            // Every row draws its own number from (seed, round, row), so the sample does not depend on threads
+            long base = roundSeed + (long) round * numRows;
+            double scale = oversampling / total;
+            Parallel.forRange(numRows, threads, (from, to) -> {
+                for (int row = from; row < to; row++) {
+                    chosen[row] = uniform(base + row) < minDistance[row] * scale;
+                }
+            });
+
+            int firstNew = numCandidates;
+            for (int row = 0; row < numRows; row++) {
+                if (!chosen[row]) continue;
+                if (numCandidates == candidates.length) candidates = Arrays.copyOf(candidates, numCandidates * 2);
+                candidates[numCandidates++] = row;
+            }
+            updateMinDistance(values, numRows, dimension, candidates, firstNew, numCandidates, minDistance, distance,
+                    threads);
+        }
+
+        // Weight each candidate by the number of rows closest to it
+        double[] points = new double[numCandidates * dimension];
+        for (int c = 0; c < numCandidates; c++) {
+            System.arraycopy(values, candidates[c] * dimension, points, c * dimension, dimension);
+        }
+        int[] nearest = new int[numRows];
+        int candidateCount = numCandidates;
+        Parallel.forRange(numRows, threads, (from, to) -> {
+            for (int row = from; row < to; row++) {
+                int closest = 0;
+                double closestDistance = Double.POSITIVE_INFINITY;
+                for (int c = 0; c < candidateCount; c++) {
+                    double dist = distance.compute(values, row * dimension, points, c * dimension, dimension,
+                            closestDistance);
+                    if (dist < closestDistance) {
+                        closestDistance = dist;
+                        closest = c;
+                    }
+                }
+                nearest[row] = closest;
+            }
+        });
+        double[] weights = new double[numCandidates];
+        for (int row = 0; row < numRows; row++) weights[nearest[row]]++;
+
+        return weightedPlusPlus(points, numCandidates, dimension, weights, k, distance, random, 1);
+    }
+
+    // Helper method to run k-means++ over rows with optional weights (null weighs every row as 1)
+    // A row is picked with probability proportional to its weight times its distance to the nearest pick so far
+    private static double[][] weightedPlusPlus(double[] values, int numRows, int dimension, double[] weights, int k,
+                                               Distance distance, Random random, int threads) {
+        double[][] centroids = new double[k][];
+        double[] minDistance = new double[numRows];
+        Arrays.fill(minDistance, Double.POSITIVE_INFINITY);
+        int[] pick = new int[1];
+
+        for (int c = 0; c < k; c++) {
+            int row = c == 0 ? -1 : sample(minDistance, weights, numRows, random);
+            // Fall back to sampling by weight alone for the first pick, or once every row sits on a centroid
+            if (row < 0) row = sample(null, weights, numRows, random);
+            centroids[c] = Arrays.copyOfRange(values, row * dimension, (row + 1) * dimension);
+            pick[0] = row;
+            updateMinDistance(values, numRows, dimension, pick, 0, 1, minDistance, distance, threads);
+        }
+        return centroids;
+    }
+
+    // Helper method to lower each row's distance to its nearest pick using the picks in rows[from, to)
+    private static void updateMinDistance(double[] values, int numRows, int dimension, int[] rows, int from, int to,
+                                          double[] minDistance, Distance distance, int threads) {
+        Parallel.forRange(numRows, threads, (fromRow, toRow) -> {
+            for (int row = fromRow; row < toRow; row++) {
+                double best = minDistance[row];
+                for (int p = from; p < to; p++) {
+                    double dist = distance.compute(values, row * dimension, values, rows[p] * dimension, dimension, best);
+                    if (dist < best) best = dist;
+                }
+                minDistance[row] = best;
+            }
+        });
+    }
+
+    // Helper method to sample a row in proportion to mass[row] * weights[row] (either may be null for all ones)
+    // Returns -1 when the total is zero
+    private static int sample(double[] mass, double[] weights, int numRows, Random random) {
+        double total = 0;
+        for (int row = 0; row < numRows; row++) total += score(mass, weights, row);
+        if (total <= 0) return -1;
+
+        double target = random.nextDouble() * total;
+        int last = -1;
+        double cumulative = 0;
+        for (int row = 0; row < numRows; row++) {
+            double s = score(mass, weights, row);
+            if (s <= 0) continue;
+            cumulative += s;
+            last = row;
+            if (cumulative > target) return row;
+        }
+        return last;
+    }
+
+    // Helper method to compute the sampling score of a row
+    private static double score(double[] mass, double[] weights, int row) {
+        double s = mass == null ? 1 : mass[row];
+        return weights == null ? s : s * weights[row];
+    }
+
+    // Helper method to turn a counter into a uniform double in [0, 1) with the SplitMix64 mixing function
+    private static double uniform(long counter) {
+        long z = counter * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53;
+    }
+}
@@ -1,19 +1,85 @@
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 // Class representing the KNN (K-Nearest Neighbors) algorithm
 public class KNN {
+    // Highest dimension for which AUTO mode uses the KD-tree; beyond it pruning rarely pays off
+    private static final int MAX_INDEX_DIMENSION = 16;
+    // Smallest training set for which AUTO mode builds the KD-tree
+    private static final int MIN_INDEX_ROWS = 128;
+    // Number of test rows predictOnData searches together when the scan is tiled
+    private static final int QUERY_BLOCK = 64;
+
+    // Strategies for finding the k nearest training points
+    public enum SearchMode {
+        LINEAR,  // Scan every training point
+        KDTREE,  // Always search the KD-tree
+        AUTO,    // Use the KD-tree for low/medium dimensions, otherwise scan
+        IVF      // Approximate search over KMeans buckets (inverted file); trades recall for speed
+    }
+
     private final int k;  // Number of neighbors to consider
-    private final List<DataPoint> data;  // List to store training data points
+    private final SearchMode mode;  // How neighbours are searched
+    private final Distance distance;  // Distance the neighbours are ranked and weighted by
+    private Dataset data;  // Training data points and their labels
+    private final int nlist;  // Number of IVF buckets (0 picks sqrt of the training size)
+    private final int nprobe;  // Number of IVF buckets scanned per query
+    private KDTree index;  // Spatial index over the training data, or null when scanning
+    private IVFIndex ivf;  // Approximate index over the training data, used in IVF mode
+    private final QuantizedIndex.Precision precision;  // Compressed format scanned instead of the rows, or null
+    private QuantizedIndex quantized;  // Compressed copy of the training data, used when scanning with a precision
+    private BlockedScan blocked;  // Tiled scan used by predictOnData when the linear scan would be used with e2
+    private boolean indexStale;  // Whether training data was added since the index was last built
+    private final ThreadLocal<Scratch> scratch;  // Per-thread buffers so predictions allocate nothing per training row
+    private final LongAdder queriesPredicted = new LongAdder();     // Number of queries predicted
+    private final LongAdder distanceEvaluations = new LongAdder();  // Number of distances computed by those queries
 
     // Constructor to initialize KNN with the value of k
     public KNN(int k) {
+        this(k, SearchMode.AUTO);
+    }
+
+    // Constructor to initialize KNN with the value of k and a search mode
+    public KNN(int k, SearchMode mode) {
+        this(k, mode, 0, 1);
+    }
+
+    // Constructor to initialize KNN with the value of k, a search mode and the IVF bucket and probe counts
+    public KNN(int k, SearchMode mode, int nlist, int nprobe) {
+        this(k, mode, Distance.EUCLIDEAN_SQUARED, nlist, nprobe);
+    }
+
+    // Constructor to initialize KNN with the value of k, a search mode, a distance and the IVF bucket and probe counts
+    public KNN(int k, SearchMode mode, Distance distance, int nlist, int nprobe) {
+        this(k, mode, distance, nlist, nprobe, null);
+    }
+
+    // Constructor to additionally scan a compressed copy of the training data (null scans the rows themselves)
+    // The compressed scan replaces the linear scan, so AUTO mode never builds the KD-tree when precision is set;
+    // the neighbours found are still exact
+    public KNN(int k, SearchMode mode, Distance distance, int nlist, int nprobe, QuantizedIndex.Precision precision) {
+        if (precision != null && (mode == SearchMode.KDTREE || mode == SearchMode.IVF)) {
+            throw new IllegalArgumentException("Compressed scans replace the linear scan only");
+        }
         this.k = k;
-        this.data = new ArrayList<>();
+        this.mode = mode;
+        this.distance = distance;
+        this.nlist = nlist;
+        this.nprobe = Math.max(1, nprobe);
+        this.precision = precision;
+        this.data = new Dataset();
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(k, this.nprobe));
     }
 
     // Method to add a single data point to the training data
     public void fit(List<Double> x, String y) {
-        this.data.add(new DataPoint(x, y));
+        this.data.addRow(x, y);
+        this.index = null;
+        this.ivf = null;
+        this.quantized = null;
+        this.blocked = null;
+        this.indexStale = true;
     }
 
     // Method to train the KNN model with a list of data points and corresponding labels
@@ -21,35 +87,238 @@ public class KNN {
         for (int i = 0; i < trainData.size(); i++) {
             fit(trainData.get(i), labels.get(i));
         }
+        buildIndex();
+    }
+
+    // Method to train the KNN model directly on a dataset
+    public void train(Dataset trainData) {
+        this.data = trainData;
+        buildIndex();
+    }
+
+    // Getter method to retrieve the number of neighbours considered
+    public int getK() {
+        return k;
+    }
+
+    // Getter method to retrieve the number of features of the training data
+    public int getNumFeatures() {
+        return data.getNumFeatures();
+    }
+
+    // Getter method to retrieve the number of queries predicted so far
+    public long getQueriesPredicted() {
+        return queriesPredicted.sum();
+    }
+
+    // Getter method to retrieve the number of distances computed by the predictions so far
+    public long getDistanceEvaluations() {
+        return distanceEvaluations.sum();
+    }
+
+    // Getter method to retrieve the distance the neighbours are ranked by
+    public Distance getDistance() {
+        return distance;
+    }
+
+    // Getter method to retrieve the compressed format scanned, or null when the rows themselves are scanned
+    public QuantizedIndex.Precision getPrecision() {
+        return precision;
+    }
+
+    // Getter method to retrieve the search mode
+    public SearchMode getMode() {
+        return mode;
+    }
+
+    // Method to check whether predictions are answered by the KD-tree
+    public boolean isIndexed() {
+        return index != null;
+    }
+
+    // Helper method to build the KD-tree or IVF index when the search mode calls for it
+    private void buildIndex() {
+        boolean useTree = switch (mode) {
+            case LINEAR, IVF -> false;
+            case KDTREE -> true;
+            case AUTO -> precision == null && data.getNumFeatures() <= MAX_INDEX_DIMENSION
+                    && data.size() >= MIN_INDEX_ROWS;
+        };
+        index = useTree ? new KDTree(data, distance) : null;
+        ivf = mode == SearchMode.IVF ? new IVFIndex(data, distance, nlist, nprobe) : null;
+        quantized = precision != null ? new QuantizedIndex(data, distance, precision) : null;
+        blocked = blockedScan();
+        indexStale = false;
+    }
+
+    // Helper method to build the tiled scan when queries would otherwise be answered by a linear scan with e2
+    private BlockedScan blockedScan() {
+        boolean linear = index == null && ivf == null && quantized == null;
+        return linear && distance == Distance.EUCLIDEAN_SQUARED ? new BlockedScan(data) : null;
+    }
+
+    // Method to write the settings, training data and search index to a model file
+    public void writeTo(ModelFile.Output out) throws IOException {
+        out.writeInt(k);
+        out.writeInt(mode.ordinal());
+        out.writeString(distance.getName());
+        out.writeInt(nlist);
+        out.writeInt(nprobe);
+        out.writeDataset(data);
+        out.writeInt(indexStale ? 1 : 0);
+        out.writeInt(index != null && !indexStale ? 1 : 0);
+        if (index != null && !indexStale) index.writeTo(out);
+        out.writeInt(ivf != null && !indexStale ? 1 : 0);
+        if (ivf != null && !indexStale) ivf.writeTo(out);
+        out.writeInt(precision == null ? -1 : precision.ordinal());
+    }
+
+    // Method to read a model written by writeTo; a saved index is used as is instead of being rebuilt
+    public static KNN readFrom(ModelFile.Input in) throws IOException {
+        int k = in.readInt();
+        SearchMode mode = SearchMode.values()[in.readOrdinal(SearchMode.values().length)];
+        String distanceName = in.readString();
+        Distance distance = Distance.forName(distanceName);
+        if (distance == null) throw new IOException("Unknown distance " + distanceName);
+        int nlist = in.readInt();
+        int nprobe = in.readInt();
+        Dataset data = in.readDataset();
+        boolean indexStale = in.readInt() != 0;
+        KDTree index = in.readInt() != 0 ? KDTree.readFrom(in, distance, data.getNumFeatures(), data.size()) : null;
+        IVFIndex ivf = in.readInt() != 0
+                ? IVFIndex.readFrom(in, distance, data.getNumFeatures(), data.size()) : null;
+        // Files from before compressed scans existed end here; the compressed copy itself is rebuilt, not saved
+        int precision = in.getVersion() >= 2 ? in.readInt() : -1;
+        if (precision < -1 || precision >= QuantizedIndex.Precision.values().length) {
+            throw new IOException("Corrupt model file: unknown precision " + precision);
+        }
+
+        KNN knn = new KNN(k, mode, distance, nlist, nprobe,
+                precision < 0 ? null : QuantizedIndex.Precision.values()[precision]);
+        knn.data = data;
+        knn.indexStale = indexStale;
+        knn.index = index;
+        knn.ivf = ivf;
+        if (knn.precision != null && !indexStale) knn.quantized = new QuantizedIndex(data, distance, knn.precision);
+        if (!indexStale) knn.blocked = knn.blockedScan();
+        return knn;
     }
 
     // Method to predict the label for a given data point
     public String predict(List<Double> x) {
-        // Calculate distances between the input data point and all training data points
-        List<DistanceLabelPair> distances = new ArrayList<>();
-        for (DataPoint point : this.data) {
-            double dist = 0;
-            for (int j = 0; j < x.size(); j++) {
-                dist += Math.pow(x.get(j) - point.getX().get(j), 2);
+        double[] query = new double[x.size()];
+        for (int j = 0; j < query.length; j++) {
+            query[j] = x.get(j);
+        }
+        return predict(query);
+    }
+
+    // Method to predict the label for a given data point stored as a primitive array
+    public String predict(double[] x) {
+        return predict(x, scratch.get());
+    }
+
+    // Helper method to predict a label, collecting the neighbours into reusable buffers
+    private String predict(double[] x, Scratch buffers) {
+        return vote(buffers.heap, nearest(x, buffers));
+    }
+
+    // Helper method to vote over the first count neighbours of a heap sorted nearest first
+    private String vote(NeighborHeap heap, int count) {
+        // Count votes for each label among the k-nearest neighbors, nearest first
+        Map<String, Double> votes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            addVote(votes, data.getLabel(heap.index(i)), heap.distance(i));
+        }
+
+        return majorityVote(votes);
+    }
+
+    // Method to predict a row once for each of several neighbour counts no larger than k, from a single search
+    // Ties are broken by row index, so the nearest kValue of the k neighbours found are exactly the kValue nearest
+    // neighbours, and each count's prediction equals that of a model trained with it
+    public String[] predictForEachK(double[] x, int[] kValues) {
+        Integer[] order = new Integer[kValues.length];
+        for (int i = 0; i < kValues.length; i++) {
+            if (kValues[i] < 1 || kValues[i] > k) {
+                throw new IllegalArgumentException("Neighbour count " + kValues[i] + " is outside 1.." + k);
             }
-            distances.add(new DistanceLabelPair(dist, point.getY()));
+            order[i] = i;
         }
+        Arrays.sort(order, Comparator.comparingInt(i -> kValues[i]));
 
-        // Sort distances in ascending order
-        distances.sort(Comparator.comparingDouble(DistanceLabelPair::getDistance));
+        Scratch buffers = scratch.get();
+        int count = nearest(x, buffers);
+        NeighborHeap heap = buffers.heap;
 
-        // Count votes for each label among the k-nearest neighbors
+        // Add the neighbours' votes in order of distance, reading off the winner whenever a count is reached
+        String[] predictions = new String[kValues.length];
         Map<String, Double> votes = new HashMap<>();
-        for (int i = 0; i < this.k && i < distances.size(); i++) {
-            DistanceLabelPair pair = distances.get(i);
-            String vote = pair.getLabel();
-            double distance = pair.getDistance();
-            double voteValue = (distance == 0) ? Double.POSITIVE_INFINITY : 1 / distance;
+        int voted = 0;
+        for (int i : order) {
+            for (; voted < Math.min(kValues[i], count); voted++) {
+                addVote(votes, data.getLabel(heap.index(voted)), heap.distance(voted));
+            }
+            predictions[i] = majorityVote(votes);
+        }
+        return predictions;
+    }
+
+    // Method to find the k nearest training rows of x, writing their row numbers and distances nearest first
+    // Returns the number of neighbours found; the arrays must hold at least k entries
+    public int neighbours(double[] x, int[] rows, double[] distances) {
+        Scratch buffers = scratch.get();
+        int count = nearest(x, buffers);
+        for (int i = 0; i < count; i++) {
+            rows[i] = buffers.heap.index(i);
+            distances[i] = buffers.heap.distance(i);
+        }
+        return count;
+    }
 
-            votes.put(vote, votes.getOrDefault(vote, 0.0) + voteValue);
+    // Method to pick the label with the largest inverse-distance vote among neighbours given nearest first,
+    // the same vote predict takes over its own neighbours
+    public static String vote(String[] labels, double[] distances, int count) {
+        Map<String, Double> votes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            addVote(votes, labels[i], distances[i]);
         }
+        return majorityVote(votes);
+    }
+
+    // Helper method to collect the k nearest neighbours of x into the scratch heap, sorted nearest first
+    // Returns the number of neighbours found
+    private int nearest(double[] x, Scratch buffers) {
+        if (indexStale) buildIndex();
+        NeighborHeap heap = buffers.heap;
+        heap.clear();
+        int computed;
+        if (ivf != null) computed = ivf.search(x, heap, buffers.probes);
+        else if (index != null) computed = index.search(x, heap);
+        else if (quantized != null) {
+            computed = quantized.search(x, heap, buffers.candidates(quantized.candidatesFor(k)),
+                    buffers.approx(data.size()));
+        } else computed = linearScan(x, heap);
+        queriesPredicted.increment();
+        distanceEvaluations.add(computed);
+        return heap.sortAscending();
+    }
+
+    // Helper method to collect the k nearest training points by scanning every one of them
+    // Each distance is bounded by the current k-th distance; returns the number of distances computed
+    private int linearScan(double[] x, NeighborHeap heap) {
+        distance.scanRows(x, 0, data.getValues(), 0, data.size(), data.getNumFeatures(), heap);
+        return data.size();
+    }
+
+    // Helper method to add the inverse-distance vote of one neighbour
+    private static void addVote(Map<String, Double> votes, String vote, double distance) {
+        double voteValue = (distance == 0) ? Double.POSITIVE_INFINITY : 1 / distance;
+        votes.put(vote, votes.getOrDefault(vote, 0.0) + voteValue);
+    }
 
-        // Determine the predicted label based on majority votes
+    // Helper method to determine the predicted label based on majority votes
+    private static String majorityVote(Map<String, Double> votes) {
         String predictedLabel = null;
         double maxVoteValue = Double.MIN_VALUE;
         for (Map.Entry<String, Double> entry : votes.entrySet()) {
@@ -71,47 +340,174 @@ public class KNN {
         return predictions;
     }
 
-    // Inner class representing a data point with features (x) and label (y)
-    private static class DataPoint {
-        private List<Double> x;  // Features of the data point
-        private String y;        // Label of the data point
+    // Method to predict labels for every row of a dataset
+    public List<String> predictOnData(Dataset testData) {
+        return predictOnData(testData, 1);
+    }
+
+    // Method to predict labels for every row of a dataset on several threads, keeping input order
+    // Without a search index and with the e2 distance the rows are searched a block at a time by a tiled scan,
+    // which finds the same neighbours as searching them one by one
+    public List<String> predictOnData(Dataset testData, int threads) {
+        if (indexStale) buildIndex();
+        String[] predictions = new String[testData.size()];
+        double[] values = testData.getValues();
+        int width = testData.getNumFeatures();
+        Parallel.forRange(testData.size(), threads, (from, to) -> {
+            Scratch buffers = scratch.get();
+            if (blocked != null) {
+                predictBlocked(values, from, to, predictions, buffers);
+                return;
+            }
+            double[] query = buffers.query(width);
+            for (int i = from; i < to; i++) {
+                System.arraycopy(values, i * width, query, 0, width);
+                predictions[i] = predict(query, buffers);
+            }
+        });
+        return Arrays.asList(predictions);
+    }
 
-        // Constructor to initialize a data point with features and label
-        public DataPoint(List<Double> x, String y) {
-            this.x = x;
-            this.y = y;
+    // Helper method to predict rows from to to - 1 of a row-major array of test rows with the tiled scan
+    private void predictBlocked(double[] queries, int from, int to, String[] predictions, Scratch buffers) {
+        NeighborHeap[] heaps = buffers.blockHeaps();
+        double[] dots = buffers.dots(blocked.getTileRows());
+        for (int start = from; start < to; start += QUERY_BLOCK) {
+            int end = Math.min(to, start + QUERY_BLOCK);
+            for (int q = start; q < end; q++) heaps[q - start].clear();
+            long computed = blocked.search(queries, start, end, heaps, buffers.queryNorms, dots);
+            queriesPredicted.add(end - start);
+            distanceEvaluations.add(computed);
+            for (int q = start; q < end; q++) {
+                NeighborHeap heap = heaps[q - start];
+                predictions[q] = vote(heap, heap.sortAscending());
+            }
+        }
+    }
+
+    // Method to compare the configured search against an exact scan on a set of queries
+    public RecallReport measureRecall(Dataset queries) {
+        if (indexStale) buildIndex();
+        Scratch buffers = scratch.get();
+        NeighborHeap approx = buffers.heap;
+        NeighborHeap exact = new NeighborHeap(k);
+        double[] query = buffers.query(queries.getNumFeatures());
+        double[] values = queries.getValues();
+        long approxNanos = 0;
+        long exactNanos = 0;
+        long found = 0;
+        long expected = 0;
+
+        for (int i = 0; i < queries.size(); i++) {
+            System.arraycopy(values, i * query.length, query, 0, query.length);
+
+            long start = System.nanoTime();
+            approx.clear();
+            if (ivf != null) ivf.search(query, approx, buffers.probes);
+            else if (index != null) index.search(query, approx);
+            else linearScan(query, approx);
+            approxNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            exact.clear();
+            linearScan(query, exact);
+            exactNanos += System.nanoTime() - start;
+
+            // Count the exact neighbours that the configured search also returned
+            Set<Integer> returned = new HashSet<>();
+            for (int j = 0; j < approx.size(); j++) returned.add(approx.index(j));
+            for (int j = 0; j < exact.size(); j++) {
+                if (returned.contains(exact.index(j))) found++;
+            }
+            expected += exact.size();
         }
 
-        // Getter method to retrieve the features of the data point
-        public List<Double> getX() {
-            return x;
+        int count = Math.max(queries.size(), 1);
+        return new RecallReport(expected == 0 ? 1 : (double) found / expected,
+                approxNanos / 1000.0 / count, exactNanos / 1000.0 / count);
+    }
+
+    // Inner class to store the recall and per-query latency of the configured search
+    public static class RecallReport {
+        private final double recall;          // Fraction of the exact k nearest neighbours that were returned
+        private final double searchMicros;    // Mean microseconds per query for the configured search
+        private final double exactMicros;     // Mean microseconds per query for the exact scan
+
+        // Constructor to initialize a recall report
+        public RecallReport(double recall, double searchMicros, double exactMicros) {
+            this.recall = recall;
+            this.searchMicros = searchMicros;
+            this.exactMicros = exactMicros;
         }
 
-        // Getter method to retrieve the label of the data point
-        public String getY() {
-            return y;
+        // Getter method to retrieve the recall
+        public double getRecall() {
+            return recall;
+        }
+
+        // Getter method to retrieve the mean search time in microseconds
+        public double getSearchMicros() {
+            return searchMicros;
+        }
+
+        // Getter method to retrieve the mean exact scan time in microseconds
+        public double getExactMicros() {
+            return exactMicros;
         }
     }
 
-    // Inner class representing a pair of distance and label
-    private static class DistanceLabelPair {
-        private final double distance;  // Distance between data points
-        private final String label;     // Label of the data point
+    // Inner class holding the per-thread buffers reused across predictions
+    private static class Scratch {
+        private final NeighborHeap heap;    // Bounded heap of the k best candidates
+        private final NeighborHeap probes;  // Bounded heap of the IVF buckets to scan
+        private double[] query;             // Buffer for the row currently being predicted
+        private NeighborHeap candidates;    // Bounded heap of the compressed scan's candidates, made on first use
+        private double[] approx;            // Compressed scan's distance to every training row, made on first use
+        private NeighborHeap[] blockHeaps;  // Heaps of a block of queries searched by the tiled scan, made on first use
+        private final double[] queryNorms;  // Squared norms of a block of queries searched by the tiled scan
+        private double[] dots;              // Dot products of a query with a tile of training rows, made on first use
+        private final int k;                // Capacity of the heaps
+
+        // Constructor to allocate the buffers for a given k and IVF probe count
+        public Scratch(int k, int nprobe) {
+            this.heap = new NeighborHeap(k);
+            this.probes = new NeighborHeap(nprobe);
+            this.query = new double[0];
+            this.queryNorms = new double[QUERY_BLOCK];
+            this.k = k;
+        }
 
-        // Constructor to initialize a distance-label pair
-        public DistanceLabelPair(double distance, String label) {
-            this.distance = distance;
-            this.label = label;
+        // Method to retrieve a query buffer of the given width
+        public double[] query(int width) {
+            if (query.length != width) query = new double[width];
+            return query;
         }
 
-        // Getter method to retrieve the distance
-        public double getDistance() {
-            return distance;
+        // Method to retrieve a candidate heap of the given capacity
+        public NeighborHeap candidates(int capacity) {
+            if (candidates == null || candidates.capacity() != capacity) candidates = new NeighborHeap(capacity);
+            return candidates;
+        }
+
+        // Method to retrieve a buffer holding at least one distance per training row
+        public double[] approx(int numRows) {
+            if (approx == null || approx.length < numRows) approx = new double[numRows];
+            return approx;
+        }
+
+        // Method to retrieve one heap per query of a block
+        public NeighborHeap[] blockHeaps() {
+            if (blockHeaps == null) {
+                blockHeaps = new NeighborHeap[QUERY_BLOCK];
+                for (int i = 0; i < QUERY_BLOCK; i++) blockHeaps[i] = new NeighborHeap(k);
+            }
+            return blockHeaps;
         }
 
-        // Getter method to retrieve the label
-        public String getLabel() {
-            return label;
+        // Method to retrieve a buffer holding one dot product per training row of a tile
+        public double[] dots(int tileRows) {
+            if (dots == null || dots.length < tileRows) dots = new double[tileRows];
+            return dots;
         }
     }
 }
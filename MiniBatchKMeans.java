@@ -0,0 +1,220 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Class representing mini-batch KMeans over an input file that is read in fixed-size batches
+// Only one batch of rows is held in memory, so files far larger than the heap can be clustered
+public class MiniBatchKMeans {
+    private final Distance distance;  // Distance used to assign rows to centroids
+    private final int batchSize;      // Number of rows per batch
+    private final int numBatches;     // Number of batches to train on; the file is re-read from the start when exhausted
+
+    // Constructor to initialize the batch size and number of batches
+    public MiniBatchKMeans(Distance distance, int batchSize, int numBatches) {
+        this.distance = distance;
+        this.batchSize = batchSize;
+        this.numBatches = numBatches;
+    }
+
+    // Method to run mini-batch KMeans over a file and print the result in the same format as KMeans.runKMeans
+    // With assign set, a final streaming pass assigns every node to its cluster; otherwise only the centroids are printed
+    public static void runMiniBatch(String filename, List<Node> centroidList, String distanceFn,
+                                    int batchSize, int numBatches, boolean assign) {
+        Distance distance = Distance.forName(distanceFn);
+        if (distance == null) {
+            System.out.println("Incorrect distance function provided for K-Means. Check README for more details.");
+            System.exit(0);
+        }
+
+        // Check dimension consistency for K-Means centroids; data rows are checked against them as they are read
+        for (Node node : centroidList) {
+            if (node.getPredList().size() != centroidList.get(0).getPredList().size()) {
+                System.out.println("Incorrect dimensions for K-Means centroid arguments. Check README for more details.");
+                System.exit(0);
+            }
+        }
+
+        double[][] centroids = KMeans.toArrays(centroidList);
+        MiniBatchKMeans miniBatch = new MiniBatchKMeans(distance, batchSize, numBatches);
+        try {
+            miniBatch.fit(filename, centroids);
+            if (assign) miniBatch.printMembers(filename, centroidList, centroids);
+            KMeans.printCentroids(centroidList, centroids, !assign);
+        } catch (IOException e) {
+            System.out.println("One or more argument file(s) not found. Terminating program.");
+            System.exit(0);
+        }
+    }
+
+    // Method to read the first maxRows rows of a file into a dataset, used to seed centroids without loading the file
+    public static Dataset readSample(String filename, int maxRows) {
+        Dataset sample = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while (sample == null || sample.size() < maxRows) {
+                if ((line = reader.readLine()) == null) break;
+                String[] tokens = KMeans.tokenize(line);
+                if (tokens == null) {
+                    continue;
+                }
+                if (sample == null) sample = new Dataset(tokens.length - 1, maxRows);
+                if (tokens.length - 1 != sample.getNumFeatures()) {
+                    System.out.println("Incorrect dimensions for K-Means data input. Check README for more details.");
+                    System.exit(0);
+                }
+                double[] row = new double[tokens.length - 1];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = Integer.parseInt(tokens[i]);
+                }
+                sample.addRow(row, tokens[tokens.length - 1]);
+            }
+        } catch (IOException e) {
+            System.out.println("One or more argument file(s) not found. Terminating program.");
+            System.exit(0);
+        }
+        return sample == null ? new Dataset() : sample;
+    }
+
+    // Method to update the centroids in place from numBatches batches of the file
+    // Each centroid moves towards a row by 1 / (number of rows it has absorbed so far), its own learning rate
+    public void fit(String filename, double[][] centroids) throws IOException {
+        int kValue = centroids.length;
+        int dimension = kValue == 0 ? 0 : centroids[0].length;
+        long[] absorbed = new long[kValue];
+        double[] batch = new double[batchSize * dimension];
+        int[] assignment = new int[batchSize];
+
+        try (BatchReader reader = new BatchReader(filename, dimension, true)) {
+            for (int b = 0; b < numBatches; b++) {
+                int rows = reader.read(batch, batchSize, null);
+                if (rows == 0) break;
+
+                // Assign the whole batch against the centroids as they were at the start of the batch
+                for (int row = 0; row < rows; row++) {
+                    assignment[row] = nearest(batch, row * dimension, centroids);
+                }
+
+                // Move each centroid towards its rows with a decaying per-centroid learning rate
+                for (int row = 0; row < rows; row++) {
+                    int c = assignment[row];
+                    double eta = 1.0 / ++absorbed[c];
+                    double[] centroid = centroids[c];
+                    int offset = row * dimension;
+                    for (int idx = 0; idx < dimension; idx++) {
+                        centroid[idx] += eta * (batch[offset + idx] - centroid[idx]);
+                    }
+                }
+            }
+        }
+    }
+
+    // Method to stream the file once and print the identities of the nodes in each cluster, as KMeans.printClusters
+    // does. Each cluster's members are spilled to a temporary file as they are assigned and the files are copied to
+    // the output at the end, so memory does not grow with the number of rows
+    public void printMembers(String filename, List<Node> centroidList, double[][] centroids) throws IOException {
+        int dimension = centroids.length == 0 ? 0 : centroids[0].length;
+        List<File> spills = new ArrayList<>();
+        List<Writer> writers = new ArrayList<>();
+        try {
+            boolean[] started = new boolean[centroids.length];
+            for (int i = 0; i < centroids.length; i++) {
+                File spill = File.createTempFile("cluster", ".txt");
+                spill.deleteOnExit();
+                spills.add(spill);
+                writers.add(new BufferedWriter(new FileWriter(spill)));
+            }
+            double[] batch = new double[batchSize * dimension];
+            String[] names = new String[batchSize];
+            try (BatchReader reader = new BatchReader(filename, dimension, false)) {
+                int rows;
+                while ((rows = reader.read(batch, batchSize, names)) > 0) {
+                    for (int row = 0; row < rows; row++) {
+                        int cluster = nearest(batch, row * dimension, centroids);
+                        if (started[cluster]) writers.get(cluster).write(",");
+                        writers.get(cluster).write(names[row]);
+                        started[cluster] = true;
+                    }
+                }
+            }
+            for (Writer writer : writers) writer.close();
+
+            for (int i = 0; i < centroids.length; i++) {
+                System.out.print(centroidList.get(i).getIdentity() + " = {");
+                Files.copy(spills.get(i).toPath(), System.out);
+                System.out.println("}");
+            }
+        } finally {
+            for (Writer writer : writers) writer.close();
+            for (File spill : spills) spill.delete();
+        }
+    }
+
+    // Helper method to find the centroid nearest to the row at offset, keeping the lowest index on ties
+    private int nearest(double[] batch, int offset, double[][] centroids) {
+        int closestCentroid = 0;
+        double closestDistance = Double.POSITIVE_INFINITY;
+        for (int idx = 0; idx < centroids.length; idx++) {
+            double dist = distance.compute(batch, offset, centroids[idx], 0, centroids[idx].length, closestDistance);
+            if (dist < closestDistance) {
+                closestDistance = dist;
+                closestCentroid = idx;
+            }
+        }
+        return closestCentroid;
+    }
+
+    // Class to read K-Means input rows into a reusable buffer, one batch at a time
+    private static class BatchReader implements AutoCloseable {
+        private final String filename;
+        private final int dimension;
+        private final boolean wrap;  // Whether to start again from the top of the file when it is exhausted
+        private BufferedReader reader;
+        private boolean rowSinceOpen;  // Whether a row was read since the file was last opened
+
+        // Constructor to open the file
+        public BatchReader(String filename, int dimension, boolean wrap) throws IOException {
+            this.filename = filename;
+            this.dimension = dimension;
+            this.wrap = wrap;
+            this.reader = new BufferedReader(new FileReader(filename));
+        }
+
+        // Method to read up to maxRows rows into batch (and their identities into names, if given)
+        public int read(double[] batch, int maxRows, String[] names) throws IOException {
+            int rows = 0;
+            while (rows < maxRows) {
+                String line = reader.readLine();
+                if (line == null) {
+                    // Start again from the top, unless the file has no rows at all
+                    if (!wrap || !rowSinceOpen) break;
+                    reader.close();
+                    reader = new BufferedReader(new FileReader(filename));
+                    rowSinceOpen = false;
+                    continue;
+                }
+                String[] tokens = KMeans.tokenize(line);
+                if (tokens == null) {
+                    continue;
+                }
+                if (tokens.length - 1 != dimension) {
+                    System.out.println("Incorrect dimensions for K-Means data input. Check README for more details.");
+                    System.exit(0);
+                }
+                int offset = rows * dimension;
+                for (int i = 0; i < dimension; i++) {
+                    batch[offset + i] = Integer.parseInt(tokens[i]);
+                }
+                if (names != null) names[rows] = tokens[tokens.length - 1];
+                rowSinceOpen = true;
+                rows++;
+            }
+            return rows;
+        }
+
+        // Method to close the underlying file
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Class for saving trained models and loading them back without retraining
+//
+// Layout (all numbers little-endian):
+//   header   magic "KNKM", format version, model type                              (three ints)
+//   body     the model's own fields, written by KNN, NaiveBayes or KMeans
+// Arrays are written as an int length followed by their elements, strings as a length and UTF-8 bytes
+// Version 2 adds the compressed scan format of KNN models and version 3 the feature model of Naive Bayes models;
+// files of earlier versions are still read
+public class ModelFile {
+    private static final int MAGIC = 0x4D4B4E4B;  // "KNKM" read as a little-endian int
+    private static final int VERSION = 3;
+
+    // Enum for the kinds of model a file can hold
+    public enum Type {
+        KNN,
+        NAIVE_BAYES,
+        KMEANS
+    }
+
+    // Class holding a loaded model; only the field matching its type is set
+    public static class Model {
+        private final Type type;
+        private KNN knn;
+        private NaiveBayes naiveBayes;
+        private KMeans.Centroids centroids;
+
+        // Constructor to create an empty model of a type
+        private Model(Type type) {
+            this.type = type;
+        }
+
+        // Getter method to retrieve the type of the model
+        public Type getType() {
+            return type;
+        }
+
+        // Getter method to retrieve the KNN model
+        public KNN getKnn() {
+            return knn;
+        }
+
+        // Getter method to retrieve the Naive Bayes model
+        public NaiveBayes getNaiveBayes() {
+            return naiveBayes;
+        }
+
+        // Getter method to retrieve the KMeans centroids
+        public KMeans.Centroids getCentroids() {
+            return centroids;
+        }
+    }
+
+    // Method to save a trained KNN model together with its training data and search index
+    public static void save(KNN knn, String filename) throws IOException {
+        try (Output out = new Output(filename, Type.KNN)) {
+            knn.writeTo(out);
+        }
+    }
+
+    // Method to save the counts of a trained Naive Bayes model
+    public static void save(NaiveBayes naiveBayes, String filename) throws IOException {
+        try (Output out = new Output(filename, Type.NAIVE_BAYES)) {
+            naiveBayes.writeTo(out);
+        }
+    }
+
+    // Method to save the final centroids of a KMeans run
+    public static void save(KMeans.Centroids centroids, String filename) throws IOException {
+        try (Output out = new Output(filename, Type.KMEANS)) {
+            centroids.writeTo(out);
+        }
+    }
+
+    // Method to read a model file and rebuild the model it holds
+    // Verbose output of a loaded Naive Bayes model is a runtime choice, so it is passed in rather than saved
+    public static Model load(String filename, boolean verbose) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            Input in = new Input(channel);
+            if (channel.size() < 12 || in.readInt() != MAGIC) throw new IOException("Not a model file");
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) throw new IOException("Unsupported model file version " + version);
+            in.version = version;
+
+            Model model = new Model(Type.values()[in.readOrdinal(Type.values().length)]);
+            switch (model.type) {
+                case KNN -> model.knn = KNN.readFrom(in);
+                case NAIVE_BAYES -> model.naiveBayes = NaiveBayes.readFrom(in, verbose);
+                case KMEANS -> model.centroids = KMeans.Centroids.readFrom(in);
+            }
+            return model;
+        }
+    }
+
+    // Class to write the little-endian fields of a model file through one reusable buffer
+    public static class Output implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Constructor to create the file and write its header
+        private Output(String filename, Type type) throws IOException {
+            this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            writeInt(MAGIC);
+            writeInt(VERSION);
+            writeInt(type.ordinal());
+        }
+
+        // Method to write an int
+        public void writeInt(int value) throws IOException {
+            reserve(4);
+            buffer.putInt(value);
+        }
+
+        // Method to write a double
+        public void writeDouble(double value) throws IOException {
+            reserve(8);
+            buffer.putDouble(value);
+        }
+
+        // Method to write a string
+        public void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            for (byte b : bytes) {
+                reserve(1);
+                buffer.put(b);
+            }
+        }
+
+        // Method to write the first length entries of an int array
+        public void writeInts(int[] values, int length) throws IOException {
+            writeInt(length);
+            for (int i = 0; i < length; i++) writeInt(values[i]);
+        }
+
+        // Method to write the first length entries of a double array
+        public void writeDoubles(double[] values, int length) throws IOException {
+            writeInt(length);
+            for (int i = 0; i < length; i++) writeDouble(values[i]);
+        }
+
+        // Method to write a list of strings
+        public void writeStrings(List<String> values) throws IOException {
+            writeInt(values.size());
+            for (String value : values) writeString(value);
+        }
+
+        // Method to write a dataset's rows, label codes and label dictionary
+        public void writeDataset(Dataset data) throws IOException {
+            writeInt(data.getNumFeatures());
+            writeInt(data.size());
+            writeStrings(data.getLabelNames());
+            writeDoubles(data.getValues(), data.size() * data.getNumFeatures());
+            writeInts(data.getLabelCodes(), data.size());
+        }
+
+        // Helper method to flush the buffer when fewer than bytes are free
+        private void reserve(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flush();
+        }
+
+        // Helper method to write out everything buffered so far
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // Class to read the little-endian fields of a model file through one bounded buffer, copying arrays out in bulk
+    // Every count read is checked against the bytes left in the file, so a truncated or corrupt file fails with an
+    // IOException instead of a runtime exception or a huge allocation
+    public static class Input {
+        private static final int READ_BUFFER = 1 << 20;  // Bytes read from the file at a time
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER).order(ByteOrder.LITTLE_ENDIAN).flip();
+        private int version;  // Format version of the file being read
+
+        // Constructor to read a file from its start
+        private Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            channel.position(0);
+        }
+
+        // Getter method to retrieve the format version of the file being read
+        public int getVersion() {
+            return version;
+        }
+
+        // Method to read an int
+        public int readInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        // Method to read a double
+        public double readDouble() throws IOException {
+            require(8);
+            return buffer.getDouble();
+        }
+
+        // Method to read the length of something whose elements take at least elementBytes bytes each
+        public int readCount(int elementBytes) throws IOException {
+            int count = readInt();
+            if (count < 0 || (long) count * elementBytes > remaining()) {
+                throw new IOException("Corrupt model file: length " + count + " runs past the end of the file");
+            }
+            return count;
+        }
+
+        // Method to read the ordinal of one of count enum constants
+        public int readOrdinal(int count) throws IOException {
+            int ordinal = readInt();
+            if (ordinal < 0 || ordinal >= count) throw new IOException("Corrupt model file: unknown code " + ordinal);
+            return ordinal;
+        }
+
+        // Method to read a string
+        public String readString() throws IOException {
+            byte[] bytes = new byte[readCount(1)];
+            for (int copied = 0; copied < bytes.length; ) {
+                require(1);
+                int chunk = Math.min(buffer.remaining(), bytes.length - copied);
+                buffer.get(bytes, copied, chunk);
+                copied += chunk;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // Method to read an int array
+        public int[] readInts() throws IOException {
+            int[] values = new int[readCount(4)];
+            for (int copied = 0; copied < values.length; ) {
+                require(4);
+                int chunk = Math.min(buffer.remaining() / 4, values.length - copied);
+                buffer.asIntBuffer().get(values, copied, chunk);
+                buffer.position(buffer.position() + chunk * 4);
+                copied += chunk;
+            }
+            return values;
+        }
+
+        // Method to read a double array
+        public double[] readDoubles() throws IOException {
+            double[] values = new double[readCount(8)];
+            for (int copied = 0; copied < values.length; ) {
+                require(8);
+                int chunk = Math.min(buffer.remaining() / 8, values.length - copied);
+                buffer.asDoubleBuffer().get(values, copied, chunk);
+                buffer.position(buffer.position() + chunk * 8);
+                copied += chunk;
+            }
+            return values;
+        }
+
+        // Method to read a list of strings
+        public List<String> readStrings() throws IOException {
+            int size = readCount(4);
+            List<String> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) values.add(readString());
+            return values;
+        }
+
+        // Method to read a dataset written by Output.writeDataset
+        public Dataset readDataset() throws IOException {
+            int numFeatures = readInt();
+            int numRows = readInt();
+            List<String> labelNames = readStrings();
+            double[] values = readDoubles();
+            int[] codes = readInts();
+            if (numFeatures < -1 || numRows < 0 || codes.length != numRows
+                    || values.length != (long) numRows * numFeatures) {
+                throw new IOException("Corrupt model file: dataset arrays do not match its shape");
+            }
+            for (int code : codes) {
+                if (code < 0 || code >= labelNames.size()) throw new IOException("Corrupt model file: bad label code");
+            }
+            return new Dataset(numFeatures, numRows, values, null, codes, labelNames);
+        }
+
+        // Method to count the bytes of the file not read yet
+        public long remaining() throws IOException {
+            return channel.size() - channel.position() + buffer.remaining();
+        }
+
+        // Helper method to make sure the buffer holds at least bytes unread bytes, failing on a truncated file
+        private void require(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) return;
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) throw new IOException("Truncated model file");
+            }
+            buffer.flip();
+        }
+    }
+}
@@ -1,190 +1,805 @@
+import java.io.*;
 import java.text.*;
 import java.util.*;
 
 public class NaiveBayes {
     // Class to perform Naive Bayes classification with Laplacian smoothing.
+    // Features are categorical by default: every distinct value is counted per label, so the tables grow with the
+    // number of distinct values. In GAUSSIAN mode each feature instead keeps a running mean and sum of squared
+    // deviations per label (Welford's method, merged across shards with Chan's formula), so the model holds
+    // 2 x features x labels numbers however many rows it sees, and values unseen in training still get a density.
+
+    // Portion of the largest feature variance added to every variance in GAUSSIAN mode, so that a feature that is
+    // constant within a label does not give zero variance
+    private static final double VAR_SMOOTHING = 1e-9;
+
+    // Enum for how feature values are modelled given a label
+    public enum FeatureModel {
+        CATEGORICAL,  // Smoothed frequency of each distinct value
+        GAUSSIAN      // Normal density with the label's mean and variance of the feature
+    }
 
     // Hyperparameters and data structures for training and storing probabilities
     private double c;  // Laplacian smoothing parameter
     private boolean verbose;  // Flag for verbose output
-    private List<Set<String>> valueSet = new ArrayList<>();  // Set of unique values for each feature/column
-    private Map<String, Double> pureProbabilities = new TreeMap<>();  // Prior probabilities of labels
-    private Map<String, String> pureProbabilitiesDesc = new TreeMap<>();  // String representation of pure probabilities
-    private Map<Triplet, Double> condProbabilities = new HashMap<>();  // Conditional probabilities of features given labels
-    private Map<Triplet, String> condProbabilitiesDesc = new HashMap<>();  // String representation of conditional probabilities
+    private boolean logSpace;  // Flag for scoring with summed log-probabilities instead of products
+    private final FeatureModel featureModel;  // How feature values are modelled given a label
 
-    // Decimal format for output precision
-    private final DecimalFormat df = new DecimalFormat("0.#############");
+    // Mergeable count state; label codes follow the order in which labels were first seen
+    private int numFeatures = -1;  // Number of feature columns (-1 until the first row is counted)
+    private int totalNum;     // Number of training rows
+    private ValueDictionary[] valueSet = new ValueDictionary[0];  // Dictionary of unique values for each feature/column
+    private List<String> labelNames = new ArrayList<>();        // Label code -> label name
+    private Map<String, Integer> labelCodes = new HashMap<>();  // Label name -> label code
+    private int[] pureCounts = new int[0];            // Number of training rows per label code
+    private int[][] condCounts = new int[0][];        // Per feature, counts indexed by [value * numLabels + label code]
+    private double[][] means = new double[0][];       // GAUSSIAN: per feature, running mean indexed by label code
+    private double[][] squaredDeviations = new double[0][];  // GAUSSIAN: per feature, sum of squared deviations from
+                                                             // the running mean indexed by label code
+    private boolean dirty;  // Whether the counts changed since the probabilities were last calculated
+
+    // Smoothed probabilities derived from the counts; here a label is its position in sorted label order
+    private String[] labels = new String[0];          // Label names in sorted order
+    private int[] labelOrder = new int[0];            // Sorted position -> label code
+    private double[] pureProbabilities = new double[0];    // Prior probabilities of labels
+    private double[][] condProbabilities = new double[0][];  // Conditional probabilities indexed by [value * numLabels + label]
+    private double[] logPureProbabilities = new double[0];    // Logs of the prior probabilities
+    private double[][] logCondProbabilities = new double[0][];  // Logs of the conditional probabilities
+    private double[][] variances = new double[0][];     // GAUSSIAN: per feature, smoothed variance indexed by label
+    private double[][] logNormalizers = new double[0][];  // GAUSSIAN: per feature, -log(sqrt(2 pi variance)) by label
+
+    // Decimal format for output precision, one per thread since DecimalFormat is not thread-safe
+    private static final ThreadLocal<DecimalFormat> df =
+            ThreadLocal.withInitial(() -> new DecimalFormat("0.#############"));
 
     // Constructor to initialize hyperparameters
     public NaiveBayes(double c, boolean verbose) {
+        this(c, verbose, false);
+    }
+
+    // Constructor to initialize hyperparameters and choose log-space scoring
+    public NaiveBayes(double c, boolean verbose, boolean logSpace) {
+        this(c, verbose, logSpace, FeatureModel.CATEGORICAL);
+    }
+
+    // Constructor to also choose how feature values are modelled; c only smooths CATEGORICAL features
+    public NaiveBayes(double c, boolean verbose, boolean logSpace, FeatureModel featureModel) {
         this.c = c;
         this.verbose = verbose;
+        this.logSpace = logSpace;
+        this.featureModel = featureModel;
     }
 
     // Method to train the Naive Bayes classifier
     public void train(List<List<Double>> trainData, List<String> labels) {
-        int totalNum = trainData.size();
-
-        // Collect unique values for each feature/column
-        for (int i = 0; i < trainData.get(0).size(); i++) {
-            Set<String> valueSetColumn = new HashSet<>();
-            for (List<Double> row : trainData) {
-                valueSetColumn.add(String.valueOf(row.get(i)));
-            }
-            valueSet.add(valueSetColumn);
-        }
-        valueSet.add(new TreeSet<>(labels));  // Add labels to value set
-
-        // Count occurrences for pure and conditional probabilities
-        Map<String, Integer> pureCountDict = new TreeMap<>();
-        Map<Triplet, Integer> condCountDict = new HashMap<>();
-        for (int i = 0; i < totalNum; i++) {
-            List<Double> rowX = trainData.get(i);
-            String rowY = labels.get(i);
-            for (int j = 0; j < rowX.size(); j++) {
-                double xCol = rowX.get(j);
-                Triplet key = new Triplet(String.valueOf(xCol), j, rowY);
-                condCountDict.put(key, condCountDict.getOrDefault(key, 0) + 1);
-            }
-            pureCountDict.put(rowY, pureCountDict.getOrDefault(rowY, 0) + 1);
-        }
-
-        // Calculate pure and conditional probabilities
-        for (String label : valueSet.get(valueSet.size() - 1)) {
-            int count = pureCountDict.getOrDefault(label, 0);
-            pureProbabilities.put(label, (double) count / totalNum);
-            pureProbabilitiesDesc.put(label, count + " / " + totalNum);
-
-            for (int i = 0; i < valueSet.size() - 1; i++) {
-                int xColDom = valueSet.get(i).size();
-                for (String xCol : valueSet.get(i)) {
-                    Triplet key = new Triplet(xCol, i, label);
-                    int countCond = condCountDict.getOrDefault(key, 0);
-                    double probability = (countCond + c) / (pureCountDict.get(label) + c * xColDom);
-                    condProbabilities.put(key, probability);
-                    condProbabilitiesDesc.put(key, df.format(countCond + c) + " / " +
-                            df.format(pureCountDict.get(label) + c * xColDom));
+        train(Dataset.fromLists(trainData, labels));
+    }
+
+    // Method to train the Naive Bayes classifier directly on a dataset
+    public void train(Dataset trainData) {
+        train(trainData, 1);
+    }
+
+    // Method to train from scratch, counting shards of the dataset on several threads and merging them
+    public void train(Dataset trainData, int threads) {
+        reset();
+        int shards = Math.min(Parallel.resolveThreads(threads), Math.max(trainData.size(), 1));
+        if (shards == 1) {
+            partialFit(trainData, 0, trainData.size());
+        } else {
+            NaiveBayes[] partials = new NaiveBayes[shards];
+            Parallel.forRange(shards, shards, (from, to) -> {
+                for (int shard = from; shard < to; shard++) {
+                    NaiveBayes partial = new NaiveBayes(c, verbose, logSpace, featureModel);
+                    partial.partialFit(trainData, (int) ((long) trainData.size() * shard / shards),
+                            (int) ((long) trainData.size() * (shard + 1) / shards));
+                    partials[shard] = partial;
+                }
+            });
+            for (NaiveBayes partial : partials) merge(partial);
+        }
+        refreshProbabilities();
+    }
+
+    // Getter method to retrieve the number of features the model was trained on
+    public int getNumFeatures() {
+        return Math.max(numFeatures, 0);
+    }
+
+    // Setter method to change the Laplacian correction, keeping the counts; the probabilities are recalculated lazily
+    public void setC(double c) {
+        this.c = c;
+        dirty = true;
+    }
+
+    // Getter method to retrieve how feature values are modelled
+    public FeatureModel getFeatureModel() {
+        return featureModel;
+    }
+
+    // Getter method to retrieve the number of labels seen in training
+    public int getNumLabels() {
+        return labelNames.size();
+    }
+
+    // Getter method to retrieve the number of distinct feature values, added up over all features
+    public long getNumDistinctValues() {
+        long total = 0;
+        for (ValueDictionary values : valueSet) total += values.size();
+        return total;
+    }
+
+    // Getter method to retrieve the number of conditional probabilities, one per label for every distinct value,
+    // or in GAUSSIAN mode the number of means and variances
+    public long getTableEntries() {
+        if (featureModel == FeatureModel.GAUSSIAN) return 2L * getNumFeatures() * getNumLabels();
+        return getNumDistinctValues() * getNumLabels();
+    }
+
+    // Method to add the rows of a dataset to the counts; probabilities are refreshed lazily on the next prediction
+    public void partialFit(Dataset trainData) {
+        partialFit(trainData, 0, trainData.size());
+    }
+
+    // Method to add the counts of a separately trained model (e.g. another shard) to this one
+    public void merge(NaiveBayes other) {
+        if (other.featureModel != featureModel) {
+            throw new IllegalArgumentException("Cannot merge " + other.featureModel + " counts into a "
+                    + featureModel + " model");
+        }
+        if (other.numFeatures < 0) return;
+        checkWidth(other.numFeatures);
+
+        // Translate the other model's label codes into this model's codes, skipping labels it has no rows of
+        int[] otherToLabel = new int[other.labelNames.size()];
+        for (int i = 0; i < otherToLabel.length; i++) {
+            otherToLabel[i] = other.pureCounts[i] > 0 ? encodeLabel(other.labelNames.get(i)) : -1;
+        }
+        int numLabels = labelNames.size();
+        int otherLabels = otherToLabel.length;
+
+        // Combine the running statistics of each label before its row count changes
+        if (featureModel == FeatureModel.GAUSSIAN) {
+            for (int label = 0; label < otherLabels; label++) {
+                double otherCount = other.pureCounts[label];
+                if (otherCount == 0) continue;
+                int code = otherToLabel[label];
+                double count = pureCounts[code];
+                double total = count + otherCount;
+                for (int j = 0; j < numFeatures; j++) {
+                    double delta = other.means[j][label] - means[j][code];
+                    means[j][code] += delta * otherCount / total;
+                    squaredDeviations[j][code] += other.squaredDeviations[j][label]
+                            + delta * delta * count * otherCount / total;
+                }
+            }
+        }
+
+        for (int j = 0; j < numFeatures; j++) {
+            ValueDictionary otherValues = other.valueSet[j];
+            int[] otherCounts = other.condCounts[j];
+            for (int v = 0; v < otherValues.size(); v++) {
+                int code = valueSet[j].encode(otherValues.valueOf(v));
+                ensureValueCapacity(j, code);
+                for (int label = 0; label < otherLabels; label++) {
+                    int otherSlot = v * otherLabels + label;
+                    if (otherToLabel[label] >= 0 && otherSlot < otherCounts.length) {
+                        condCounts[j][code * numLabels + otherToLabel[label]] += otherCounts[otherSlot];
+                    }
+                }
+            }
+        }
+        for (int label = 0; label < otherLabels; label++) {
+            if (otherToLabel[label] >= 0) pureCounts[otherToLabel[label]] += other.pureCounts[label];
+        }
+        totalNum += other.totalNum;
+        dirty = true;
+    }
+
+    // Method to write the smoothing settings and counts to a model file
+    // The probability tables are derived from the counts in one pass on load, which keeps partialFit working
+    public void writeTo(ModelFile.Output out) throws IOException {
+        out.writeDouble(c);
+        out.writeInt(logSpace ? 1 : 0);
+        out.writeInt(numFeatures);
+        out.writeInt(totalNum);
+        out.writeStrings(labelNames);
+        out.writeInts(pureCounts, labelNames.size());
+        int numLabels = labelNames.size();
+        for (int j = 0; j < Math.max(numFeatures, 0); j++) {
+            ValueDictionary values = valueSet[j];
+            out.writeInt(values.size());
+            for (int v = 0; v < values.size(); v++) out.writeDouble(values.valueOf(v));
+            int[] counts = Arrays.copyOf(condCounts[j], values.size() * numLabels);
+            out.writeInts(counts, counts.length);
+        }
+        out.writeInt(featureModel.ordinal());
+        if (featureModel == FeatureModel.GAUSSIAN) {
+            for (int j = 0; j < Math.max(numFeatures, 0); j++) {
+                out.writeDoubles(means[j], numLabels);
+                out.writeDoubles(squaredDeviations[j], numLabels);
+            }
+        }
+    }
+
+    // Method to read a model written by writeTo, with verbose output chosen by the caller
+    public static NaiveBayes readFrom(ModelFile.Input in, boolean verbose) throws IOException {
+        double c = in.readDouble();
+        boolean logSpace = in.readInt() != 0;
+        int features = in.readInt();
+        int totalNum = in.readInt();
+        List<String> labelNames = in.readStrings();
+        int[] pureCounts = in.readInts();
+        if (pureCounts.length != labelNames.size()) throw new IOException("Corrupt model file: bad label counts");
+        // Every feature's table takes at least its two lengths
+        if (features < -1 || 8L * features > in.remaining()) throw new IOException("Corrupt model file: bad width");
+        int[][] counts = new int[Math.max(features, 0)][];
+        double[][] distinctValues = new double[counts.length][];
+        for (int j = 0; j < counts.length; j++) {
+            distinctValues[j] = new double[in.readCount(8)];
+            for (int v = 0; v < distinctValues[j].length; v++) distinctValues[j][v] = in.readDouble();
+            counts[j] = in.readInts();
+            if (counts[j].length != (long) distinctValues[j].length * labelNames.size()) {
+                throw new IOException("Corrupt model file: bad counts of feature " + j);
+            }
+        }
+        // Files from before GAUSSIAN mode existed end here
+        FeatureModel featureModel = in.getVersion() >= 3
+                ? FeatureModel.values()[in.readOrdinal(FeatureModel.values().length)] : FeatureModel.CATEGORICAL;
+
+        NaiveBayes model = new NaiveBayes(c, verbose, logSpace, featureModel);
+        model.totalNum = totalNum;
+        if (features >= 0) model.checkWidth(features);
+        for (String label : labelNames) {
+            model.labelNames.add(label);
+            model.labelCodes.put(label, model.labelCodes.size());
+        }
+        model.pureCounts = pureCounts;
+        for (int j = 0; j < counts.length; j++) {
+            for (double value : distinctValues[j]) model.valueSet[j].encode(value);
+            model.condCounts[j] = counts[j];
+            if (featureModel == FeatureModel.GAUSSIAN) {
+                model.means[j] = in.readDoubles();
+                model.squaredDeviations[j] = in.readDoubles();
+                if (model.means[j].length != labelNames.size()
+                        || model.squaredDeviations[j].length != labelNames.size()) {
+                    throw new IOException("Corrupt model file: bad moments of feature " + j);
+                }
+            }
+        }
+        model.dirty = true;
+        return model;
+    }
+
+    // Helper method to count the rows [from, to) of a dataset
+    private void partialFit(Dataset trainData, int from, int to) {
+        if (to <= from) return;
+        checkWidth(trainData.getNumFeatures());
+
+        // Translate the dataset's label codes into this model's codes, registering only the labels of rows in the
+        // range: a label without rows would have no likelihoods, which are 0/0 when c is 0
+        int[] datasetToLabel = new int[trainData.getNumLabels()];
+        Arrays.fill(datasetToLabel, -1);
+        for (int i = from; i < to; i++) {
+            int label = trainData.getLabelCode(i);
+            if (datasetToLabel[label] < 0) datasetToLabel[label] = encodeLabel(trainData.getLabelName(label));
+        }
+        int numLabels = labelNames.size();
+
+        // Update each feature's running mean and squared deviations per label in GAUSSIAN mode
+        double[] values = trainData.getValues();
+        if (featureModel == FeatureModel.GAUSSIAN) {
+            for (int i = from; i < to; i++) {
+                int rowY = datasetToLabel[trainData.getLabelCode(i)];
+                int offset = i * numFeatures;
+                int count = ++pureCounts[rowY];
+                for (int j = 0; j < numFeatures; j++) {
+                    double delta = values[offset + j] - means[j][rowY];
+                    means[j][rowY] += delta / count;
+                    squaredDeviations[j][rowY] += delta * (values[offset + j] - means[j][rowY]);
+                }
+            }
+            totalNum += to - from;
+            dirty = true;
+            return;
+        }
+
+        // Encode the values of each feature/column and count them per label
+        for (int i = from; i < to; i++) {
+            int rowY = datasetToLabel[trainData.getLabelCode(i)];
+            int offset = i * numFeatures;
+            for (int j = 0; j < numFeatures; j++) {
+                int code = valueSet[j].encode(values[offset + j]);
+                ensureValueCapacity(j, code);
+                condCounts[j][code * numLabels + rowY]++;
+            }
+            pureCounts[rowY]++;
+        }
+        totalNum += to - from;
+        dirty = true;
+    }
+
+    // Helper method to clear all counts before training from scratch
+    private void reset() {
+        numFeatures = -1;
+        totalNum = 0;
+        valueSet = new ValueDictionary[0];
+        labelNames = new ArrayList<>();
+        labelCodes = new HashMap<>();
+        pureCounts = new int[0];
+        condCounts = new int[0][];
+        means = new double[0][];
+        squaredDeviations = new double[0][];
+        dirty = true;
+    }
+
+    // Helper method to fix the number of features on the first rows counted and reject other widths
+    private void checkWidth(int width) {
+        if (numFeatures < 0) {
+            numFeatures = width;
+            valueSet = new ValueDictionary[width];
+            condCounts = new int[width][];
+            means = new double[width][];
+            squaredDeviations = new double[width][];
+            for (int j = 0; j < width; j++) {
+                valueSet[j] = new ValueDictionary();
+                condCounts[j] = new int[0];
+                means[j] = new double[labelNames.size()];
+                squaredDeviations[j] = new double[labelNames.size()];
+            }
+        } else if (width != numFeatures) {
+            throw new IllegalArgumentException("Rows have " + width + " features, expected " + numFeatures);
+        }
+    }
+
+    // Helper method to return the code of a label, widening the count tables when the label is new
+    private int encodeLabel(String label) {
+        Integer code = labelCodes.get(label);
+        if (code != null) return code;
+
+        int oldLabels = labelNames.size();
+        int newLabels = oldLabels + 1;
+        for (int j = 0; j < numFeatures; j++) {
+            int[] old = condCounts[j];
+            int numValues = old.length / Math.max(oldLabels, 1);
+            int[] widened = new int[numValues * newLabels];
+            for (int v = 0; v < numValues && oldLabels > 0; v++) {
+                System.arraycopy(old, v * oldLabels, widened, v * newLabels, oldLabels);
+            }
+            condCounts[j] = widened;
+            means[j] = Arrays.copyOf(means[j], newLabels);
+            squaredDeviations[j] = Arrays.copyOf(squaredDeviations[j], newLabels);
+        }
+        pureCounts = Arrays.copyOf(pureCounts, newLabels);
+        labelNames.add(label);
+        labelCodes.put(label, oldLabels);
+        return oldLabels;
+    }
+
+    // Helper method to make room for a value code in a feature's count table
+    private void ensureValueCapacity(int feature, int code) {
+        int numLabels = labelNames.size();
+        int needed = (code + 1) * numLabels;
+        if (needed > condCounts[feature].length) {
+            condCounts[feature] = Arrays.copyOf(condCounts[feature], Math.max(needed, condCounts[feature].length * 2));
+        }
+    }
+
+    // Helper method to recalculate the probabilities if the counts changed since the last time
+    private synchronized void refreshProbabilities() {
+        if (dirty) {
+            computeProbabilities();
+            dirty = false;
+        }
+    }
+
+    // Helper method to calculate pure and conditional probabilities (and their logs) from the counts
+    private void computeProbabilities() {
+        // Order the labels by name, which decides the scoring order and the winner on ties. Labels without rows
+        // (e.g. from older model files) are left out, as their likelihoods are undefined
+        TreeSet<String> counted = new TreeSet<>();
+        for (int code = 0; code < labelNames.size(); code++) {
+            if (pureCounts[code] > 0) counted.add(labelNames.get(code));
+        }
+        labels = counted.toArray(new String[0]);
+        int numLabels = labels.length;
+        labelOrder = new int[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            labelOrder[label] = labelCodes.get(labels[label]);
+        }
+
+        int features = Math.max(numFeatures, 0);
+        pureProbabilities = new double[numLabels];
+        condProbabilities = new double[features][];
+        for (int label = 0; label < numLabels; label++) {
+            pureProbabilities[label] = (double) pureCounts[labelOrder[label]] / totalNum;
+        }
+        if (featureModel == FeatureModel.GAUSSIAN) computeDensities(features, numLabels);
+        // GAUSSIAN features have no distinct values, so their tables are empty
+        for (int j = 0; j < features; j++) {
+            int xColDom = valueSet[j].size();
+            double[] probabilities = new double[xColDom * numLabels];
+            for (int v = 0; v < xColDom; v++) {
+                for (int label = 0; label < numLabels; label++) {
+                    int countCond = condCount(j, v, label);
+                    probabilities[v * numLabels + label] =
+                            (countCond + c) / (pureCounts[labelOrder[label]] + c * xColDom);
                 }
             }
+            condProbabilities[j] = probabilities;
+        }
+
+        // Precompute the log tables used by log-space scoring
+        logPureProbabilities = new double[numLabels];
+        logCondProbabilities = new double[features][];
+        for (int label = 0; label < numLabels; label++) {
+            logPureProbabilities[label] = Math.log(pureProbabilities[label]);
         }
+        for (int j = 0; j < features; j++) {
+            double[] logs = new double[condProbabilities[j].length];
+            for (int slot = 0; slot < logs.length; slot++) {
+                logs[slot] = Math.log(condProbabilities[j][slot]);
+            }
+            logCondProbabilities[j] = logs;
+        }
+    }
+
+    // Helper method to calculate the smoothed variances and density normalizers of GAUSSIAN features
+    private void computeDensities(int features, int numLabels) {
+        double largestVariance = 0;
+        for (int j = 0; j < features; j++) {
+            for (int label = 0; label < numLabels; label++) {
+                int code = labelOrder[label];
+                largestVariance = Math.max(largestVariance, squaredDeviations[j][code] / pureCounts[code]);
+            }
+        }
+        double smoothing = VAR_SMOOTHING * (largestVariance > 0 ? largestVariance : 1);
+
+        variances = new double[features][numLabels];
+        logNormalizers = new double[features][numLabels];
+        for (int j = 0; j < features; j++) {
+            for (int label = 0; label < numLabels; label++) {
+                int code = labelOrder[label];
+                variances[j][label] = squaredDeviations[j][code] / pureCounts[code] + smoothing;
+                logNormalizers[j][label] = -0.5 * Math.log(2 * Math.PI * variances[j][label]);
+            }
+        }
+    }
+
+    // Helper method to compute the log-density of a GAUSSIAN feature value for a label in sorted order
+    private double logDensity(int feature, double value, int label) {
+        double diff = value - means[feature][labelOrder[label]];
+        return logNormalizers[feature][label] - diff * diff / (2 * variances[feature][label]);
+    }
+
+    // Helper method to read the count of a value code for a label in sorted order
+    private int condCount(int feature, int code, int label) {
+        int slot = code * labelNames.size() + labelOrder[label];
+        return slot < condCounts[feature].length ? condCounts[feature][slot] : 0;
     }
 
     // Method to calculate the probability of a label given a set of features
     public double calculateYProb(List<String> x, String y) {
-        if (!valueSet.get(valueSet.size() - 1).contains(y)) {
+        refreshProbabilities();
+        StringBuilder trace = new StringBuilder();
+        double prob;
+        int label = Arrays.binarySearch(labels, y);
+        if (label < 0) {
             // Warning if the label is not in the training label set
-            System.out.println("Warning: Label " + df.format(Double.parseDouble(y)) +
-                    " does not exist in training label set");
-            return 0;
+            trace.append("Warning: Label " + df.get().format(Double.parseDouble(y)) +
+                    " does not exist in training label set").append('\n');
+            prob = 0;
+        } else {
+            double[] row = parseRow(x);
+            prob = calculateYProb(row, 0, row.length, encodeRow(row, 0, row.length, new int[row.length]), label, trace);
         }
+        System.out.print(trace);
+        return prob;
+    }
 
+    // Helper method to calculate the probability of a label for a row whose values are already encoded
+    private double calculateYProb(double[] x, int offset, int width, int[] codes, int label, StringBuilder trace) {
         if (verbose) {
-            System.out.println("P(C=" + y + ") = [" + pureProbabilitiesDesc.get(y) + "]");
+            trace.append("P(C=" + labels[label] + ") = [" + pureCounts[labelOrder[label]] + " / " + totalNum + "]").append('\n');
         }
 
-        double prob = pureProbabilities.get(y);
-        if (x.size() > valueSet.size() - 1) {
+        double prob = pureProbabilities[label];
+        if (width > numFeatures) {
             // Error if the input features have more dimensions than training data
-            System.out.println("Error: X (" + x + ") has more features than training data.");
+            System.out.print(trace);
+            System.out.println("Error: X (" + describeRow(x, offset, width) + ") has more features than training data.");
             System.exit(1);
         }
 
+        // Multiply in the density of each feature in GAUSSIAN mode
+        if (featureModel == FeatureModel.GAUSSIAN) {
+            for (int i = 0; i < width; i++) {
+                double density = Math.exp(logDensity(i, x[offset + i], label));
+                if (verbose) {
+                    trace.append("p(A" + df.get().format(i) + "=" + df.get().format(x[offset + i]) +
+                            " | C=" + labels[label] + ") = N(" + df.get().format(means[i][labelOrder[label]]) + ", " +
+                            df.get().format(variances[i][label]) + ") = " + df.get().format(density)).append('\n');
+                }
+                prob *= density;
+            }
+            return prob;
+        }
+
         // Calculate the conditional probabilities for each feature
-        for (int i = 0; i < x.size(); i++) {
-            String xCol = x.get(i);
+        int numLabels = labels.length;
+        for (int i = 0; i < width; i++) {
+            int code = codes[i];
 
-            if (!valueSet.get(i).contains(xCol)) {
+            if (code < 0) {
                 // Warning if the feature value is not in the training set
-                System.out.println("Warning: X value " + df.format(Double.parseDouble(xCol)) +
-                        " for column #" + (i + 1) + " not in training set.");
+                trace.append("Warning: X value " + df.get().format(x[offset + i]) +
+                        " for column #" + (i + 1) + " not in training set.").append('\n');
                 return 0;
             }
 
-            Triplet key = new Triplet(xCol, i, y);
+            int slot = code * numLabels + label;
             if (verbose) {
-                System.out.println("P(A" + df.format(i) + "=" + df.format(Double.parseDouble(xCol)) +
-                        " | C=" + y + ") = " + condProbabilitiesDesc.get(key));
+                int xColDom = valueSet[i].size();
+                trace.append("P(A" + df.get().format(i) + "=" + df.get().format(x[offset + i]) +
+                        " | C=" + labels[label] + ") = " + df.get().format(condCount(i, code, label) + c) + " / " +
+                        df.get().format(pureCounts[labelOrder[label]] + c * xColDom)).append('\n');
             }
 
-            prob *= condProbabilities.get(key);
+            prob *= condProbabilities[i][slot];
         }
         return prob;
     }
 
     // Method to predict the label for a given set of features
     public String predict(List<String> x, String y) {
-        List<String> labels = new ArrayList<>();
-        List<Double> probs = new ArrayList<>();
+        refreshProbabilities();
+        StringBuilder trace = new StringBuilder();
+        double[] row = parseRow(x);
+        String prediction = predict(row, 0, row.length, y, new int[row.length], new double[labels.length], trace);
+        System.out.print(trace);
+        return prediction;
+    }
+
+    // Helper method to predict the label for a row, appending any output to a per-row trace
+    private String predict(double[] x, int offset, int width, String y, int[] codes, double[] probs, StringBuilder trace) {
+        encodeRow(x, offset, width, codes);
 
-        // Calculate probabilities for each label
-        for (String value : valueSet.get(valueSet.size() - 1)) {
-            double prob = calculateYProb(x, value);
-            labels.add(value);
-            probs.add(prob);
+        // Calculate probabilities (or log-probabilities) for each label
+        if (logSpace) {
+            calculateLogScores(x, offset, width, codes, probs, trace);
+        } else {
+            for (int label = 0; label < labels.length; label++) {
+                probs[label] = calculateYProb(x, offset, width, codes, label, trace);
+            }
         }
 
-        // Print probabilities and determine the predicted label
-        for (int i = 0; i < labels.size(); i++) {
-            String label = labels.get(i);
-            double prob = probs.get(i);
+        // Print probabilities and determine the predicted label (the first one on ties)
+        int maxIndex = 0;
+        for (int label = 0; label < labels.length; label++) {
             if (verbose) {
-                System.out.println("NB(C=" + label + ") = " + String.format("%.6f", prob));
+                trace.append((logSpace ? "logNB(C=" : "NB(C=") + labels[label] + ") = " +
+                        String.format("%.6f", probs[label])).append('\n');
             }
+            if (probs[label] > probs[maxIndex]) maxIndex = label;
         }
 
-        double maxProb = Collections.max(probs);
-        int maxIndex = probs.indexOf(maxProb);
-
-        if (verbose) {
-            if (labels.get(maxIndex).equals(y))
-                System.out.println("match: \"" + labels.get(maxIndex) + "\"");
+        // The true label is unknown when streaming, so there is nothing to compare against
+        if (verbose && y != null) {
+            if (labels[maxIndex].equals(y))
+                trace.append("match: \"" + labels[maxIndex] + "\"").append('\n');
             else
-                System.out.println("fail: got \"" + labels.get(maxIndex) + "\" != want \"" + y + "\"");
+                trace.append("fail: got \"" + labels[maxIndex] + "\" != want \"" + y + "\"").append('\n');
         }
 
-        return labels.get(maxIndex);
+        return labels[maxIndex];
+    }
+
+    // Helper method to score every label in log space with a single pass over the row's features
+    private void calculateLogScores(double[] x, int offset, int width, int[] codes, double[] scores, StringBuilder trace) {
+        int numLabels = labels.length;
+        System.arraycopy(logPureProbabilities, 0, scores, 0, numLabels);
+        if (width > numFeatures) {
+            // Error if the input features have more dimensions than training data
+            System.out.print(trace);
+            System.out.println("Error: X (" + describeRow(x, offset, width) + ") has more features than training data.");
+            System.exit(1);
+        }
+
+        if (featureModel == FeatureModel.GAUSSIAN) {
+            for (int i = 0; i < width; i++) {
+                for (int label = 0; label < numLabels; label++) {
+                    scores[label] += logDensity(i, x[offset + i], label);
+                }
+            }
+            return;
+        }
+
+        for (int i = 0; i < width; i++) {
+            int code = codes[i];
+            if (code < 0) {
+                // Warning if the feature value is not in the training set; no label can be scored
+                trace.append("Warning: X value " + df.get().format(x[offset + i]) +
+                        " for column #" + (i + 1) + " not in training set.").append('\n');
+                Arrays.fill(scores, 0, numLabels, Double.NEGATIVE_INFINITY);
+                return;
+            }
+
+            double[] table = logCondProbabilities[i];
+            int base = code * numLabels;
+            for (int label = 0; label < numLabels; label++) {
+                scores[label] += table[base + label];
+            }
+        }
+    }
+
+    // Method to lazily predict rows as they are pulled from an iterator, without materializing the test set
+    public Iterator<String> predictStream(Iterator<double[]> rows) {
+        refreshProbabilities();
+        return new Iterator<>() {
+            private final StringBuilder trace = new StringBuilder();
+            private final double[] probs = new double[labels.length];
+            private int[] codes = new int[numFeatures];
+
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public String next() {
+                double[] row = rows.next();
+                if (codes.length != row.length) codes = new int[row.length];
+                trace.setLength(0);
+                String prediction = predict(row, 0, row.length, null, codes, probs, trace);
+                System.out.print(trace);
+                return prediction;
+            }
+        };
     }
 
     // Method to predict labels for a set of data points
     public List<String> predictOnData(List<List<Double>> testData, List<String> testLabels) {
-        List<String> predictions = new ArrayList<>();
-        for (int i = 0; i < testData.size(); i++) {
-            List<Double> dataPoint = testData.get(i);
-            List<String> stringDataPoint = new ArrayList<>();
-            for (Double value : dataPoint) {
-                stringDataPoint.add(String.valueOf(value));
+        return predictOnData(Dataset.fromLists(testData, testLabels));
+    }
+
+    // Method to predict labels for every row of a dataset, using its label column for verbose output
+    public List<String> predictOnData(Dataset testData) {
+        return predictOnData(testData, 1);
+    }
+
+    // Method to predict labels for every row of a dataset on several threads, keeping input order
+    public List<String> predictOnData(Dataset testData, int threads) {
+        return predictOnData(testData, threads, true);
+    }
+
+    // Method to predict labels for every row of a dataset, printing or discarding the per-row output
+    // (verbose traces and warnings about unseen values)
+    public List<String> predictOnData(Dataset testData, int threads, boolean printTraces) {
+        refreshProbabilities();
+        int numRows = testData.size();
+        String[] predictions = new String[numRows];
+        String[] traces = new String[numRows];
+        double[] values = testData.getValues();
+        int width = testData.getNumFeatures();
+
+        // Single-threaded runs print each row's trace as soon as it is ready
+        boolean immediate = Parallel.resolveThreads(threads) == 1;
+        Parallel.forRange(numRows, threads, (from, to) -> {
+            StringBuilder trace = new StringBuilder();
+            int[] codes = new int[width];
+            double[] probs = new double[labels.length];
+            for (int i = from; i < to; i++) {
+                trace.setLength(0);
+                predictions[i] = predict(values, i * width, width, testData.getLabel(i), codes, probs, trace);
+                if (!printTraces) continue;
+                if (immediate) System.out.print(trace);
+                else traces[i] = trace.toString();
             }
-            predictions.add(predict(stringDataPoint, testLabels.get(i)));
+        });
+
+        // Print the buffered traces in input order so rows never interleave
+        if (printTraces && !immediate) {
+            for (String trace : traces) System.out.print(trace);
         }
-        return predictions;
+        return Arrays.asList(predictions);
     }
 
-    // Class to represent a triplet (feature value, feature index, label)
-    private static class Triplet {
-        private final String first;
-        private final int second;
-        private final String third;
+    // Helper method to look up the code of every feature value of a row (-1 when unseen in training)
+    // GAUSSIAN features have no codes, so nothing is looked up
+    private int[] encodeRow(double[] x, int offset, int width, int[] codes) {
+        if (featureModel == FeatureModel.GAUSSIAN) return codes;
+        for (int i = 0; i < width; i++) {
+            codes[i] = i < numFeatures ? valueSet[i].find(x[offset + i]) : -1;
+        }
+        return codes;
+    }
+
+    // Helper method to parse a row given as strings
+    private static double[] parseRow(List<String> x) {
+        double[] row = new double[x.size()];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = Double.parseDouble(x.get(i));
+        }
+        return row;
+    }
+
+    // Helper method to describe a row the way a list of its values prints
+    private static String describeRow(double[] x, int offset, int width) {
+        List<String> row = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) {
+            row.add(String.valueOf(x[offset + i]));
+        }
+        return row.toString();
+    }
+
+    // Class to assign dense int codes to the distinct values of one feature/column
+    private static class ValueDictionary {
+        private long[] keys = new long[16];  // Open-addressing table of value bits
+        private int[] slots = new int[16];   // Code stored at each table position, -1 when empty
+        private long[] codeKeys = new long[16];  // Value bits by code
+        private int size;                    // Number of distinct values
+
+        public ValueDictionary() {
+            Arrays.fill(slots, -1);
+        }
+
+        // Method to retrieve the value that was assigned a code
+        public double valueOf(int code) {
+            return Double.longBitsToDouble(codeKeys[code]);
+        }
+
+        // Method to retrieve the number of distinct values
+        public int size() {
+            return size;
+        }
 
-        public Triplet(String first, int second, String third) {
-            this.first = first;
-            this.second = second;
-            this.third = third;
+        // Method to find the code of a value, or -1 if it has not been seen
+        public int find(double value) {
+            long key = Double.doubleToLongBits(value);
+            int mask = keys.length - 1;
+            for (int pos = hash(key) & mask; slots[pos] >= 0; pos = (pos + 1) & mask) {
+                if (keys[pos] == key) return slots[pos];
+            }
+            return -1;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            Triplet triplet = (Triplet) o;
-            return second == triplet.second &&
-                    Objects.equals(first, triplet.first) &&
-                    Objects.equals(third, triplet.third);
+        // Method to return the code of a value, assigning the next code if it has not been seen
+        public int encode(double value) {
+            long key = Double.doubleToLongBits(value);
+            int mask = keys.length - 1;
+            int pos = hash(key) & mask;
+            for (; slots[pos] >= 0; pos = (pos + 1) & mask) {
+                if (keys[pos] == key) return slots[pos];
+            }
+            keys[pos] = key;
+            slots[pos] = size;
+            if (size == codeKeys.length) codeKeys = Arrays.copyOf(codeKeys, size * 2);
+            codeKeys[size] = key;
+            if (++size * 2 > keys.length) grow();
+            return size - 1;
+        }
+
+        // Helper method to double the table once it is half full
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldSlots = slots;
+            keys = new long[oldKeys.length * 2];
+            slots = new int[oldSlots.length * 2];
+            Arrays.fill(slots, -1);
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldSlots[i] < 0) continue;
+                int pos = hash(oldKeys[i]) & mask;
+                while (slots[pos] >= 0) pos = (pos + 1) & mask;
+                keys[pos] = oldKeys[i];
+                slots[pos] = oldSlots[i];
+            }
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(first, second, third);
+        // Helper method to spread the bits of a key
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
         }
     }
 }
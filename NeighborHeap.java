@@ -0,0 +1,111 @@
+// Class representing a fixed-size max-heap of the k nearest candidates seen so far
+public class NeighborHeap {
+    private final int capacity;       // Number of neighbours to keep
+    private final double[] distances; // Heap-ordered distances, largest at the root
+    private final int[] indices;      // Training row of each heap entry
+    private int size;                 // Number of entries currently in the heap
+
+    // Constructor to create an empty heap holding at most capacity neighbours
+    public NeighborHeap(int capacity) {
+        this.capacity = capacity;
+        this.distances = new double[capacity];
+        this.indices = new int[capacity];
+        this.size = 0;
+    }
+
+    // Method to empty the heap so it can be reused for another query
+    public void clear() {
+        size = 0;
+    }
+
+    // Getter method to retrieve the number of entries in the heap
+    public int size() {
+        return size;
+    }
+
+    // Getter method to retrieve the maximum number of entries
+    public int capacity() {
+        return capacity;
+    }
+
+    // Method to retrieve the distance a candidate must not exceed to enter the heap
+    public double worst() {
+        return size < capacity ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    // Method to offer a candidate; ties on distance are broken in favour of the lower row index
+    public void offer(double distance, int index) {
+        if (capacity == 0) return;
+        if (size < capacity) {
+            distances[size] = distance;
+            indices[size] = index;
+            siftUp(size++);
+        } else if (isBefore(distance, index, distances[0], indices[0])) {
+            distances[0] = distance;
+            indices[0] = index;
+            siftDown(0, size);
+        }
+    }
+
+    // Method to sort the entries in ascending (distance, index) order; the heap must be cleared before reuse
+    public int sortAscending() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        return size;
+    }
+
+    // Method to retrieve the distance at a position (ascending order after sortAscending)
+    public double distance(int position) {
+        return distances[position];
+    }
+
+    // Method to retrieve the training row at a position (ascending order after sortAscending)
+    public int index(int position) {
+        return indices[position];
+    }
+
+    // Helper method to compare two candidates by distance and then by row index
+    private static boolean isBefore(double d1, int i1, double d2, int i2) {
+        return d1 < d2 || (d1 == d2 && i1 < i2);
+    }
+
+    // Helper method to restore the heap property upwards from a position
+    private void siftUp(int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!isBefore(distances[parent], indices[parent], distances[pos], indices[pos])) break;
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    // Helper method to restore the heap property downwards from a position within the first end entries
+    private void siftDown(int pos, int end) {
+        while (true) {
+            int largest = pos;
+            int left = 2 * pos + 1;
+            int right = left + 1;
+            if (left < end && isBefore(distances[largest], indices[largest], distances[left], indices[left])) {
+                largest = left;
+            }
+            if (right < end && isBefore(distances[largest], indices[largest], distances[right], indices[right])) {
+                largest = right;
+            }
+            if (largest == pos) return;
+            swap(pos, largest);
+            pos = largest;
+        }
+    }
+
+    // Helper method to swap two heap entries
+    private void swap(int a, int b) {
+        double d = distances[a];
+        distances[a] = distances[b];
+        distances[b] = d;
+        int i = indices[a];
+        indices[a] = indices[b];
+        indices[b] = i;
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Class providing a fork/join helper for splitting index ranges across threads
+public class Parallel {
+    private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();  // Thread count -> shared pool
+
+    // Interface for work over a contiguous range of indices [from, to)
+    public interface RangeTask {
+        void run(int from, int to);
+    }
+
+    // Method to resolve a requested thread count, where 0 or less means one thread per core
+    public static int resolveThreads(int threads) {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    // Method to run a task over [0, n) split into contiguous chunks on the given number of threads
+    public static void forRange(int n, int threads, RangeTask task) {
+        threads = resolveThreads(threads);
+        if (threads == 1 || n <= 1) {
+            task.run(0, n);
+            return;
+        }
+
+        // Use a few chunks per thread so uneven rows do not leave threads idle
+        int chunks = (int) Math.min(n, (long) threads * 4);
+        ForkJoinPool pool = pool(threads);
+        List<ForkJoinTask<?>> futures = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            int from = (int) ((long) n * c / chunks);
+            int to = (int) ((long) n * (c + 1) / chunks);
+            futures.add(pool.submit(() -> task.run(from, to)));
+        }
+        for (ForkJoinTask<?> future : futures) {
+            future.join();
+        }
+    }
+
+    // Helper method to retrieve the shared pool for a thread count, creating it on first use
+    // Pools are kept for the life of the program so that frequent small calls, such as server micro-batches,
+    // do not start new threads every time; their worker threads are daemons and never keep the program alive
+    private static ForkJoinPool pool(int threads) {
+        return POOLS.computeIfAbsent(threads, ForkJoinPool::new);
+    }
+}
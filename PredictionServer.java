@@ -0,0 +1,192 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Class representing a long-running prediction server around a trained KNN or Naive Bayes model
+// Requests are lines of comma separated features (an extra last column, such as a label, is ignored) and every
+// request gets one response line, in order, holding the predicted label or an "error:" message.
+// Requests from all clients go through one queue and are predicted in micro-batches: a batch is sent to the
+// model once it holds maxBatch rows or once its oldest request has waited maxWaitMicros
+public class PredictionServer {
+    private final Predictor predictor;    // Model used to predict a batch of rows
+    private final int width;              // Number of features the model expects
+    private final int maxBatch;           // Largest number of rows predicted together
+    private final long maxWaitNanos;      // Longest time the first request of a batch waits for more requests
+    private final int threads;            // Threads used by the model for each batch
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private long batches;                 // Number of batches predicted
+    private long rows;                    // Number of rows predicted
+
+    // Interface for a model that predicts the labels of every row in a dataset
+    public interface Predictor {
+        List<String> predictOnData(Dataset batch, int threads);
+    }
+
+    // Class representing one queued request and the response it will receive
+    private static class Request {
+        private final double[] x;
+        private final CompletableFuture<String> response = new CompletableFuture<>();
+
+        // Constructor to wrap the features of a request
+        public Request(double[] x) {
+            this.x = x;
+        }
+    }
+
+    // Constructor to initialize the server around a model expecting rows of the given width
+    public PredictionServer(Predictor predictor, int width, int maxBatch, long maxWaitMicros, int threads) {
+        this.predictor = predictor;
+        this.width = width;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxWaitNanos = Math.max(0, maxWaitMicros) * 1000;
+        this.threads = threads;
+
+        Thread batcher = new Thread(this::runBatches, "prediction-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    // Method to queue a row for prediction, completing the returned future with its label
+    public CompletableFuture<String> submit(double[] x) {
+        Request request = new Request(x);
+        queue.add(request);
+        return request.response;
+    }
+
+    // Method to serve requests read from standard input, writing the responses to standard output
+    public void serveStdio() {
+        serve(System.in, System.out);
+        System.err.println(describe());
+    }
+
+    // Method to accept clients on a local port, serving each connection on its own thread until the process ends
+    public void serveSocket(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket client = server.accept();
+                Thread handler = new Thread(() -> {
+                    try (client) {
+                        serve(client.getInputStream(), client.getOutputStream());
+                    } catch (IOException e) {
+                        // The client went away; nothing is left to answer
+                    }
+                }, "prediction-client");
+                handler.setDaemon(true);
+                handler.start();
+            }
+        }
+    }
+
+    // Method to answer every request line of an input stream on an output stream, in order
+    // Reading runs ahead of writing, so one client can fill a batch without waiting for each answer
+    public void serve(InputStream input, OutputStream output) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+        BlockingQueue<CompletableFuture<String>> pending = new LinkedBlockingQueue<>();
+        CompletableFuture<String> endOfInput = new CompletableFuture<>();
+
+        Thread responder = new Thread(() -> {
+            try {
+                while (true) {
+                    CompletableFuture<String> response = pending.take();
+                    if (response == endOfInput) break;
+                    writer.println(response.join());
+                    // Flush once the answers that are ready have been written
+                    if (pending.isEmpty() || !pending.peek().isDone()) writer.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer.flush();
+        }, "prediction-responder");
+        responder.start();
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                pending.add(handle(line));
+            }
+        } catch (IOException e) {
+            // Treat a broken input like its end
+        }
+        pending.add(endOfInput);
+        try {
+            responder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Method to describe how many rows and batches have been predicted
+    public synchronized String describe() {
+        return "Predicted " + rows + " rows in " + batches + " batches ("
+                + String.format("%.1f", batches == 0 ? 0 : (double) rows / batches) + " rows per batch)";
+    }
+
+    // Helper method to parse a request line and queue it, answering malformed lines straight away
+    private CompletableFuture<String> handle(String line) {
+        String[] values = line.split(",");
+        if (values.length != width && values.length != width + 1) {
+            return CompletableFuture.completedFuture("error: expected " + width + " features, got " + values.length);
+        }
+        double[] x = new double[width];
+        try {
+            for (int i = 0; i < width; i++) {
+                x[i] = Double.parseDouble(values[i]);
+            }
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture("error: " + e.getMessage());
+        }
+        return submit(x);
+    }
+
+    // Helper method run by the batcher thread: gather a micro-batch, predict it and answer its requests
+    private void runBatches() {
+        List<Request> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            batch.clear();
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatch) {
+                    // Take whatever is already queued, then wait for more only until the deadline
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) continue;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Requests carry no label, so every row gets the same placeholder
+            Dataset rowsToPredict = new Dataset(width, batch.size());
+            int unknown = rowsToPredict.encodeLabel("?");
+            for (Request request : batch) {
+                rowsToPredict.addRow(request.x, unknown);
+            }
+            List<String> predictions;
+            String error = null;
+            try {
+                predictions = predictor.predictOnData(rowsToPredict, threads);
+            } catch (RuntimeException e) {
+                predictions = null;
+                error = "error: " + e;
+            }
+            // Count the batch before answering it, so a summary written after the last answer includes it
+            synchronized (this) {
+                batches++;
+                rows += batch.size();
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).response.complete(predictions != null ? predictions.get(i) : error);
+            }
+        }
+    }
+}
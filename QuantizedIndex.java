@@ -0,0 +1,159 @@
+import java.util.*;
+
+// Class representing a compressed copy of the training rows for KNN scans that read less memory per row
+// Rows are stored as floats (half the bytes of doubles) or as one byte per feature (an eighth), where each feature
+// is scaled between its smallest and largest training value. A query first scans the compressed rows; the nearest
+// candidates are then re-ranked with full-precision distances. Because the largest difference between any stored
+// row and its original is known, every row that could still beat the k-th exact distance is re-ranked as well, so
+// the neighbours found are exactly those of a full-precision scan
+public class QuantizedIndex {
+    private static final int CANDIDATE_FACTOR = 4;  // Candidates re-ranked per neighbour before any other row
+    private static final double SLACK = 1e-9;       // Relative allowance for rounding in the bound checks
+
+    // Enum for the compressed formats
+    public enum Precision {
+        FLOAT32,  // Four bytes per feature
+        INT8      // One byte per feature, scaled per feature between its training minimum and maximum
+    }
+
+    private final Precision precision;  // Format of the compressed rows
+    private final Distance distance;    // Distance used for scanning and re-ranking
+    private final int width;            // Number of features per row
+    private final int numRows;          // Number of training rows
+    private final double[] values;      // Full-precision rows, read only when re-ranking
+    private final float[] floats;       // FLOAT32 rows
+    private final byte[] codes;         // INT8 rows; code c of feature j stands for min[j] + (c + 128) * scale[j]
+    private final double[] min;         // Smallest training value of each feature (INT8)
+    private final double[] scale;       // Step between consecutive codes of each feature (INT8)
+    private final double errorNorm;     // Largest metric distance between any stored row and its original
+
+    // Constructor to compress the rows of a dataset
+    public QuantizedIndex(Dataset data, Distance distance, Precision precision) {
+        if (distance != Distance.MANHATTAN && distance != Distance.EUCLIDEAN_SQUARED) {
+            throw new IllegalArgumentException("Compressed scans support the manh and e2 distances only");
+        }
+        this.precision = precision;
+        this.distance = distance;
+        this.width = data.getNumFeatures();
+        this.numRows = data.size();
+        this.values = data.getValues();
+        double[] maxError = new double[width];
+
+        if (precision == Precision.FLOAT32) {
+            this.floats = new float[numRows * width];
+            this.codes = null;
+            this.min = null;
+            this.scale = null;
+            for (int i = 0; i < floats.length; i++) {
+                floats[i] = (float) values[i];
+                maxError[i % width] = Math.max(maxError[i % width], Math.abs(values[i] - floats[i]));
+            }
+        } else {
+            this.floats = null;
+            this.codes = new byte[numRows * width];
+            this.min = new double[width];
+            this.scale = new double[width];
+            double[] max = new double[width];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            for (int i = 0; i < values.length; i++) {
+                min[i % width] = Math.min(min[i % width], values[i]);
+                max[i % width] = Math.max(max[i % width], values[i]);
+            }
+            for (int j = 0; j < width; j++) {
+                scale[j] = max[j] > min[j] ? (max[j] - min[j]) / 255 : 1;
+            }
+            for (int i = 0; i < values.length; i++) {
+                int j = i % width;
+                int code = (int) Math.max(0, Math.min(255, Math.round((values[i] - min[j]) / scale[j])));
+                codes[i] = (byte) (code - 128);
+                maxError[j] = Math.max(maxError[j], Math.abs(values[i] - (min[j] + code * scale[j])));
+            }
+        }
+        // Each stored coordinate is off by at most maxError, so a stored row is at most this far from its original
+        this.errorNorm = distance.toMetric(distance.compute(maxError, new double[width]));
+    }
+
+    // Getter method to retrieve the format of the compressed rows
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    // Method to retrieve how many candidates a search for k neighbours re-ranks before checking the other rows
+    public int candidatesFor(int k) {
+        return k * CANDIDATE_FACTOR;
+    }
+
+    // Method to collect the exact k nearest rows to x into the heap, returning the number of distances computed
+    // candidates must hold candidatesFor(heap.capacity()) entries and approx at least one entry per training row
+    public int search(double[] x, NeighborHeap heap, NeighborHeap candidates, double[] approx) {
+        // Scan the compressed rows, keeping the nearest candidates and every row's approximate distance
+        // An abandoned distance is a partial sum, which is still no larger than the full approximate distance
+        candidates.clear();
+        for (int row = 0; row < numRows; row++) {
+            double dist = precision == Precision.FLOAT32
+                    ? scanFloat(x, row * width, candidates.worst())
+                    : scanCode(x, row * width, candidates.worst());
+            approx[row] = dist;
+            if (dist < candidates.worst()) candidates.offer(dist, row);
+        }
+        int computed = numRows;
+
+        // Re-rank the candidates exactly, marking them so they are not re-ranked twice
+        for (int i = 0; i < candidates.size(); i++) {
+            int row = candidates.index(i);
+            offerExact(x, row, heap);
+            approx[row] = Double.POSITIVE_INFINITY;
+        }
+        computed += candidates.size();
+
+        // Every other row is at least as far as the farthest candidate in approximate distance, so unless that
+        // could still beat the k-th exact distance once the compression error is taken off, the search is done
+        if (candidates.size() < candidates.capacity() || mayBeCloser(candidates.worst(), heap.worst())) {
+            for (int row = 0; row < numRows; row++) {
+                if (approx[row] != Double.POSITIVE_INFINITY && mayBeCloser(approx[row], heap.worst())) {
+                    offerExact(x, row, heap);
+                    computed++;
+                }
+            }
+        }
+        return computed;
+    }
+
+    // Helper method to check whether a row at an approximate distance could be within an exact distance
+    private boolean mayBeCloser(double approxDistance, double exactDistance) {
+        double lowerBound = distance.toMetric(approxDistance) - errorNorm;
+        double threshold = distance.toMetric(exactDistance);
+        return lowerBound <= threshold + SLACK * (Math.abs(threshold) + errorNorm + Math.abs(lowerBound));
+    }
+
+    // Helper method to compute a row's full-precision distance and offer it to the heap
+    private void offerExact(double[] x, int row, NeighborHeap heap) {
+        double dist = distance.compute(x, 0, values, row * width, width, heap.worst());
+        if (dist <= heap.worst()) heap.offer(dist, row);
+    }
+
+    // Helper method to compute the distance from x to a FLOAT32 row, stopping once it exceeds bound
+    private double scanFloat(double[] x, int offset, double bound) {
+        double totalSum = 0;
+        boolean manhattan = distance == Distance.MANHATTAN;
+        for (int j = 0; j < width; j++) {
+            double diff = x[j] - floats[offset + j];
+            totalSum += manhattan ? Math.abs(diff) : diff * diff;
+            if ((j & 3) == 3 && totalSum > bound) return totalSum;
+        }
+        return totalSum;
+    }
+
+    // Helper method to compute the distance from x to an INT8 row, stopping once it exceeds bound
+    private double scanCode(double[] x, int offset, double bound) {
+        double totalSum = 0;
+        boolean manhattan = distance == Distance.MANHATTAN;
+        for (int j = 0; j < width; j++) {
+            double diff = x[j] - (min[j] + (codes[offset + j] + 128) * scale[j]);
+            totalSum += manhattan ? Math.abs(diff) : diff * diff;
+            if ((j & 3) == 3 && totalSum > bound) return totalSum;
+        }
+        return totalSum;
+    }
+}
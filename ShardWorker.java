@@ -0,0 +1,101 @@
+import java.io.*;
+import java.util.*;
+
+// Class run as a separate process by ShardedKNN, holding one shard of the training data and answering local
+// top-k queries over its standard input and output
+//
+// Protocol (DataInput/DataOutput encoding):
+//   start    k, search mode ordinal, distance name, nlist, nprobe, sent once by the coordinator
+//   ROWS     width, row count, then per row: global row number, width doubles, label
+//   BUILD    train the shard's KNN (building its search index) and answer READY
+//   QUERY    query count, then width doubles per query; once the whole batch is read, answered per query with the
+//            neighbour count and, nearest first, each neighbour's distance, global row number and label
+//   EXIT     end the process
+public class ShardWorker {
+    public static final byte ROWS = 1;
+    public static final byte BUILD = 2;
+    public static final byte QUERY = 3;
+    public static final byte EXIT = 4;
+    public static final byte READY = 5;
+
+    // Main method to serve the coordinator until it sends EXIT or closes the pipe
+    public static void main(String[] args) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(System.in, 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out, 1 << 16));
+            serve(in, out);
+        } catch (EOFException e) {
+            // The coordinator went away; nothing is left to answer
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Shard worker failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    // Method to answer the coordinator's messages on a pair of streams
+    public static void serve(DataInputStream in, DataOutputStream out) throws IOException {
+        int k = in.readInt();
+        KNN.SearchMode mode = KNN.SearchMode.values()[in.readInt()];
+        String distanceName = in.readUTF();
+        Distance distance = Distance.forName(distanceName);
+        if (distance == null) throw new IOException("Unknown distance " + distanceName);
+        int nlist = in.readInt();
+        int nprobe = in.readInt();
+
+        Dataset shard = null;
+        int[] globalRows = new int[1024];
+        KNN knn = null;
+        while (true) {
+            byte message = in.readByte();
+            switch (message) {
+                case ROWS -> {
+                    int width = in.readInt();
+                    int count = in.readInt();
+                    if (shard == null) shard = new Dataset(width, count);
+                    double[] row = new double[width];
+                    for (int i = 0; i < count; i++) {
+                        int globalRow = in.readInt();
+                        for (int j = 0; j < width; j++) row[j] = in.readDouble();
+                        if (shard.size() == globalRows.length) globalRows = Arrays.copyOf(globalRows, globalRows.length * 2);
+                        globalRows[shard.size()] = globalRow;
+                        shard.addRow(row, in.readUTF());
+                    }
+                }
+                case BUILD -> {
+                    if (shard != null) {
+                        knn = new KNN(k, mode, distance, nlist, nprobe);
+                        knn.train(shard);
+                    }
+                    out.writeByte(READY);
+                    out.flush();
+                }
+                case QUERY -> {
+                    // Read the whole batch before answering any of it: the coordinator sends the batch to every
+                    // worker before reading answers, so answering early could fill the pipe and block both sides
+                    int count = in.readInt();
+                    int width = in.readInt();
+                    double[] queries = new double[count * width];
+                    for (int i = 0; i < queries.length; i++) queries[i] = in.readDouble();
+                    double[] query = new double[width];
+                    int[] rows = new int[k];
+                    double[] distances = new double[k];
+                    for (int q = 0; q < count; q++) {
+                        System.arraycopy(queries, q * width, query, 0, width);
+                        int found = knn == null ? 0 : knn.neighbours(query, rows, distances);
+                        out.writeInt(found);
+                        for (int i = 0; i < found; i++) {
+                            out.writeDouble(distances[i]);
+                            out.writeInt(globalRows[rows[i]]);
+                            out.writeUTF(shard.getLabel(rows[i]));
+                        }
+                    }
+                    out.flush();
+                }
+                case EXIT -> {
+                    return;
+                }
+                default -> throw new IOException("Unknown message " + message);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+// Class representing a KNN model whose training data is spread over several worker processes (see ShardWorker)
+// The training rows are dealt round-robin to the workers as they are read, so this process never holds them.
+// Queries are sent to every worker in batches; each worker returns its local k nearest rows and the partial lists
+// are merged into the global k nearest, with ties broken by the row's position in the training file as KNN does,
+// before the same inverse-distance vote as KNN.predict. Exact search modes therefore predict exactly like KNN
+public class ShardedKNN implements Closeable {
+    private static final int ROWS_PER_MESSAGE = 1024;  // Training rows sent to a worker at a time
+    private static final int QUERIES_PER_BATCH = 256;  // Queries sent to the workers at a time
+
+    private final int k;                           // Number of neighbours to consider
+    private final Process[] workers;               // Worker processes, one per shard
+    private final DataOutputStream[] toWorker;     // Streams to the workers' standard input
+    private final DataInputStream[] fromWorker;    // Streams from the workers' standard output
+    private int numRows;                           // Number of training rows handed out so far
+    private int width = -1;                        // Number of features per training row (-1 before the first)
+
+    // Constructor to start one worker process per shard with the same java command, JVM options and class path as
+    // this one, so the workers use the same distance kernels (see Distance); a debugger agent is not passed on
+    // workerHeap, such as "2g", sets each worker's maximum heap; an empty string keeps this JVM's setting
+    public ShardedKNN(int shards, int k, KNN.SearchMode mode, Distance distance, int nlist, int nprobe,
+                      String workerHeap) throws IOException {
+        if (shards < 1) throw new IllegalArgumentException("Number of shards must be at least 1");
+        this.k = k;
+        this.workers = new Process[shards];
+        this.toWorker = new DataOutputStream[shards];
+        this.fromWorker = new DataInputStream[shards];
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<String> command = new ArrayList<>(List.of(java));
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!option.startsWith("-agentlib:jdwp") && !option.startsWith("-Xrunjdwp")) command.add(option);
+        }
+        // The last -Xmx given wins
+        if (!workerHeap.isEmpty()) command.add("-Xmx" + workerHeap);
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), "ShardWorker"));
+        for (int s = 0; s < shards; s++) {
+            workers[s] = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            toWorker[s] = new DataOutputStream(new BufferedOutputStream(workers[s].getOutputStream(), 1 << 16));
+            fromWorker[s] = new DataInputStream(new BufferedInputStream(workers[s].getInputStream(), 1 << 16));
+            toWorker[s].writeInt(k);
+            toWorker[s].writeInt(mode.ordinal());
+            toWorker[s].writeUTF(distance.getName());
+            toWorker[s].writeInt(nlist);
+            toWorker[s].writeInt(nprobe);
+        }
+    }
+
+    // Method to train on a KNN input file, streaming its rows to the workers; binary dataset files are loaded first
+    // Text is parsed a block at a time by CsvLoader, so rows are accepted or rejected exactly as KNN's loader does
+    public void train(String filename) throws IOException {
+        if (DatasetFile.isBinary(filename)) {
+            train(CsvLoader.readCsv(filename, 1));
+            return;
+        }
+        RowBatch[] pending = newBatches();
+        CsvLoader.readBlocks(filename, CsvLoader.Format.CSV, block -> {
+            for (int row = 0; row < block.size(); row++) addRow(pending, block.getRow(row), block.getLabel(row));
+        });
+        build(pending);
+    }
+
+    // Method to train on the rows of a dataset already in memory
+    public void train(Dataset data) throws IOException {
+        RowBatch[] pending = newBatches();
+        for (int row = 0; row < data.size(); row++) {
+            addRow(pending, data.getRow(row), data.getLabel(row));
+        }
+        build(pending);
+    }
+
+    // Method to predict labels for every row of a dataset, keeping input order
+    public List<String> predictOnData(Dataset testData) throws IOException {
+        if (testData.size() > 0 && testData.getNumFeatures() != width) {
+            throw new IOException("Test rows have " + testData.getNumFeatures() + " features instead of " + width);
+        }
+        double[] values = testData.getValues();
+        List<String> predictions = new ArrayList<>(testData.size());
+        NeighborHeap merged = new NeighborHeap(k);
+        Map<Integer, String> labelOfRow = new HashMap<>();
+        String[] labels = new String[k];
+        double[] distances = new double[k];
+
+        for (int from = 0; from < testData.size(); from += QUERIES_PER_BATCH) {
+            int count = Math.min(QUERIES_PER_BATCH, testData.size() - from);
+
+            // Send the batch to every worker before reading any answer, so the workers search at the same time
+            // Workers read a whole batch before answering it, so their answers cannot block these writes
+            for (DataOutputStream out : toWorker) {
+                out.writeByte(ShardWorker.QUERY);
+                out.writeInt(count);
+                out.writeInt(width);
+                for (int i = from * width; i < (from + count) * width; i++) out.writeDouble(values[i]);
+                out.flush();
+            }
+
+            // Read every worker's partial lists for the whole batch
+            double[][][] partialDistances = new double[workers.length][count][];
+            int[][][] partialRows = new int[workers.length][count][];
+            String[][][] partialLabels = new String[workers.length][count][];
+            for (int s = 0; s < workers.length; s++) {
+                DataInputStream in = fromWorker[s];
+                for (int q = 0; q < count; q++) {
+                    int found = readAnswer(s, in::readInt);
+                    partialDistances[s][q] = new double[found];
+                    partialRows[s][q] = new int[found];
+                    partialLabels[s][q] = new String[found];
+                    for (int i = 0; i < found; i++) {
+                        partialDistances[s][q][i] = in.readDouble();
+                        partialRows[s][q][i] = in.readInt();
+                        partialLabels[s][q][i] = in.readUTF();
+                    }
+                }
+            }
+
+            // Merge the partial lists into the k nearest rows and vote, nearest first
+            for (int q = 0; q < count; q++) {
+                merged.clear();
+                labelOfRow.clear();
+                for (int s = 0; s < workers.length; s++) {
+                    for (int i = 0; i < partialRows[s][q].length; i++) {
+                        merged.offer(partialDistances[s][q][i], partialRows[s][q][i]);
+                        labelOfRow.put(partialRows[s][q][i], partialLabels[s][q][i]);
+                    }
+                }
+                int found = merged.sortAscending();
+                for (int i = 0; i < found; i++) {
+                    labels[i] = labelOfRow.get(merged.index(i));
+                    distances[i] = merged.distance(i);
+                }
+                predictions.add(KNN.vote(labels, distances, found));
+            }
+        }
+        return predictions;
+    }
+
+    // Getter method to retrieve the number of training rows spread over the workers
+    public int size() {
+        return numRows;
+    }
+
+    // Method to stop the workers and wait for them to end
+    @Override
+    public void close() throws IOException {
+        for (int s = 0; s < workers.length; s++) {
+            try {
+                toWorker[s].writeByte(ShardWorker.EXIT);
+                toWorker[s].close();
+            } catch (IOException e) {
+                // The worker already ended
+            }
+        }
+        for (Process worker : workers) {
+            try {
+                worker.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                worker.destroy();
+            }
+        }
+    }
+
+    // Class holding the training rows waiting to be sent to one worker
+    private static class RowBatch {
+        private final List<double[]> rows = new ArrayList<>();
+        private final List<String> labels = new ArrayList<>();
+        private final List<Integer> globalRows = new ArrayList<>();
+    }
+
+    // Interface for reading one value of a worker's answer
+    private interface AnswerReader {
+        int read() throws IOException;
+    }
+
+    // Helper method to read the start of a worker's answer, naming the worker if it has stopped
+    private int readAnswer(int shard, AnswerReader reader) throws IOException {
+        try {
+            return reader.read();
+        } catch (EOFException e) {
+            throw new IOException("Shard worker " + shard + " stopped");
+        }
+    }
+
+    // Helper method to create an empty batch of pending rows per worker
+    private RowBatch[] newBatches() {
+        RowBatch[] pending = new RowBatch[workers.length];
+        for (int s = 0; s < pending.length; s++) pending[s] = new RowBatch();
+        return pending;
+    }
+
+    // Helper method to deal the next training row to its worker, sending the worker's batch once it is full
+    private void addRow(RowBatch[] pending, double[] row, String label) throws IOException {
+        if (width < 0) width = row.length;
+        if (row.length != width) {
+            throw new IOException("Training row " + (numRows + 1) + " has " + row.length + " features instead of "
+                    + width);
+        }
+        int shard = numRows % workers.length;
+        RowBatch batch = pending[shard];
+        batch.rows.add(row);
+        batch.labels.add(label);
+        batch.globalRows.add(numRows++);
+        if (batch.rows.size() == ROWS_PER_MESSAGE) sendRows(shard, batch);
+    }
+
+    // Helper method to send a batch of training rows to a worker and empty it
+    private void sendRows(int shard, RowBatch batch) throws IOException {
+        DataOutputStream out = toWorker[shard];
+        out.writeByte(ShardWorker.ROWS);
+        out.writeInt(width);
+        out.writeInt(batch.rows.size());
+        for (int i = 0; i < batch.rows.size(); i++) {
+            out.writeInt(batch.globalRows.get(i));
+            for (double value : batch.rows.get(i)) out.writeDouble(value);
+            out.writeUTF(batch.labels.get(i));
+        }
+        batch.rows.clear();
+        batch.labels.clear();
+        batch.globalRows.clear();
+    }
+
+    // Helper method to send the remaining rows and have every worker build its shard, waiting until all are ready
+    private void build(RowBatch[] pending) throws IOException {
+        for (int s = 0; s < workers.length; s++) {
+            if (!pending[s].rows.isEmpty()) sendRows(s, pending[s]);
+            toWorker[s].writeByte(ShardWorker.BUILD);
+            toWorker[s].flush();
+        }
+        for (int s = 0; s < workers.length; s++) {
+            if (readAnswer(s, fromWorker[s]::readByte) != ShardWorker.READY) {
+                throw new IOException("Shard worker " + s + " did not build its shard");
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+// Class collecting run metrics and writing them as JSON lines, one object per line, for monitoring to ingest
+// Nothing is measured until enable is called, so the phases and events cost nothing in normal runs
+public class Stats {
+    private static PrintStream out;  // Destination of the JSON lines, or null while disabled
+    private static final Map<Long, Long> ALLOCATED_BY_THREAD = new HashMap<>();  // Thread id -> last allocation count
+    private static final Phase DISABLED = new Phase(null);
+
+    // Method to start writing metrics to a stream, ending with a "run" phase covering the rest of the program
+    public static synchronized void enable(PrintStream stream) {
+        if (out != null) return;
+        out = stream;
+        Phase run = start("run");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> run.end(0)));
+    }
+
+    // Method to check whether metrics are being written
+    public static boolean isEnabled() {
+        return out != null;
+    }
+
+    // Method to start timing a phase of the program; the returned phase does nothing while disabled
+    public static Phase start(String name) {
+        return out == null ? DISABLED : new Phase(name);
+    }
+
+    // Method to write an event with the given fields, passed as alternating names and values
+    public static void event(String name, Object... fields) {
+        if (out == null) return;
+        StringBuilder line = new StringBuilder("{\"event\":");
+        appendValue(line, name);
+        line.append(",\"ts\":").append(System.currentTimeMillis());
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(',');
+            appendValue(line, String.valueOf(fields[i]));
+            line.append(':');
+            appendValue(line, fields[i + 1]);
+        }
+        line.append('}');
+        synchronized (Stats.class) {
+            out.println(line);
+            out.flush();
+        }
+    }
+
+    // Class timing one phase: wall time, and bytes allocated by every thread of the program while it ran
+    public static class Phase {
+        private final String name;
+        private final long startNanos;
+        private final long startAllocated;
+
+        // Constructor to record the start of a phase; a null name marks the shared disabled phase
+        private Phase(String name) {
+            this.name = name;
+            this.startNanos = name == null ? 0 : System.nanoTime();
+            this.startAllocated = name == null ? 0 : allocatedBytes();
+        }
+
+        // Method to end the phase and write it, with its throughput when rows is positive
+        public void end(long rows) {
+            if (name == null) return;
+            double millis = (System.nanoTime() - startNanos) / 1e6;
+            long allocated = allocatedBytes();
+            List<Object> fields = new ArrayList<>(List.of("name", name, "wall_ms", millis));
+            if (rows > 0) {
+                fields.addAll(List.of("rows", rows, "rows_per_sec", millis > 0 ? rows * 1000 / millis : 0.0));
+            }
+            if (allocated >= 0 && startAllocated >= 0) fields.addAll(List.of("alloc_bytes", allocated - startAllocated));
+            event("phase", fields.toArray());
+        }
+    }
+
+    // Helper method to add up the bytes allocated so far by every thread, or -1 if the JVM cannot tell
+    // The JVM forgets a thread once it ends, so the last count seen for each thread is kept and still added in;
+    // only what a thread allocated after the previous sample and before ending is missed
+    private static synchronized long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean allocation)
+                || !allocation.isThreadAllocatedMemorySupported() || !allocation.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = allocation.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] > 0) ALLOCATED_BY_THREAD.put(ids[i], bytes[i]);
+        }
+        long total = 0;
+        for (long threadBytes : ALLOCATED_BY_THREAD.values()) total += threadBytes;
+        return total;
+    }
+
+    // Helper method to append a value as JSON: numbers as they are (non-finite ones as null), anything else as a string
+    private static void appendValue(StringBuilder line, Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isFinite(number)) line.append(number);
+            else line.append("null");
+            return;
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (char ch : String.valueOf(value).toCharArray()) {
+            switch (ch) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> {
+                    if (ch < 0x20) line.append(String.format("\\u%04x", (int) ch));
+                    else line.append(ch);
+                }
+            }
+        }
+        line.append('"');
+    }
+}
@@ -0,0 +1,247 @@
+import jdk.incubator.vector.*;
+
+// Class holding SIMD versions of the distances, built on the incubating Vector API
+// Distance loads this class by name, so it is optional: compile it with
+//   javac --add-modules jdk.incubator.vector VectorDistance.java
+// and start java with --add-modules jdk.incubator.vector to use it. The features of a row are split across the lanes of
+// a vector; rows narrower than one vector keep the scalar loops, so their distances are unchanged. Only the order in
+// which the terms are added differs from the scalar loops (see Distance for the tolerance). The batched forms are
+// overridden as well, so scans and K-means assignment run the kernels directly; computeBlock loads each target vector
+// once for four queries and adds in the same order as compute, so both give the same distances
+public class VectorDistance {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    private static final int QUERY_BLOCK = 4;   // Queries whose distances to a target computeBlock computes together
+
+    // Method to retrieve the SIMD version of a scalar distance, or null when the CPU has no vectors of doubles
+    public static Distance of(Distance scalar) {
+        if (LANES < 2) return null;
+        if (scalar instanceof Distance.Manhattan) return new Manhattan();
+        if (scalar instanceof Distance.EuclideanSquared) return new EuclideanSquared();
+        return null;
+    }
+
+    // Helper method to compute the Manhattan distance of two vectors at least one vector of doubles wide
+    private static double manhattan(double[] a, int aOffset, double[] b, int bOffset, int dimension, double bound) {
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int upper = SPECIES.loopBound(dimension);
+        int idx = 0;
+        // Check the running sum against the bound once per block of four vectors, as the scalar loop does
+        // once per block of four coordinates
+        for (int block = 1; idx < upper; idx += LANES, block++) {
+            DoubleVector diff = DoubleVector.fromArray(SPECIES, a, aOffset + idx)
+                    .sub(DoubleVector.fromArray(SPECIES, b, bOffset + idx));
+            sums = sums.add(diff.abs());
+            if ((block & 3) == 0 && sums.reduceLanes(VectorOperators.ADD) > bound) {
+                return sums.reduceLanes(VectorOperators.ADD);
+            }
+        }
+        double totalSum = sums.reduceLanes(VectorOperators.ADD);
+        for (; idx < dimension; idx++) {
+            totalSum += Math.abs(a[aOffset + idx] - b[bOffset + idx]);
+        }
+        return totalSum;
+    }
+
+    // Helper method to compute the squared Euclidean distance of two vectors at least one vector of doubles wide
+    private static double squared(double[] a, int aOffset, double[] b, int bOffset, int dimension, double bound) {
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int upper = SPECIES.loopBound(dimension);
+        int idx = 0;
+        // Check the running sum against the bound once per block of four vectors
+        for (int block = 1; idx < upper; idx += LANES, block++) {
+            DoubleVector diff = DoubleVector.fromArray(SPECIES, a, aOffset + idx)
+                    .sub(DoubleVector.fromArray(SPECIES, b, bOffset + idx));
+            sums = sums.add(diff.mul(diff));
+            if ((block & 3) == 0 && sums.reduceLanes(VectorOperators.ADD) > bound) {
+                return sums.reduceLanes(VectorOperators.ADD);
+            }
+        }
+        double totalSum = sums.reduceLanes(VectorOperators.ADD);
+        for (; idx < dimension; idx++) {
+            double diff = a[aOffset + idx] - b[bOffset + idx];
+            totalSum += diff * diff;
+        }
+        return totalSum;
+    }
+
+    // Helper method to compute the full distances of four consecutive queries, starting at row query, to one target
+    // Each target vector is loaded once for the four queries; the sums are added as in the single pair kernels
+    private static void blockOfFour(boolean squared, double[] queries, int query, double[] targets, int targetOffset,
+                                    int dimension, double[] out, int outOffset, int numTargets) {
+        int offset0 = query * dimension;
+        int offset1 = offset0 + dimension;
+        int offset2 = offset1 + dimension;
+        int offset3 = offset2 + dimension;
+        DoubleVector sums0 = DoubleVector.zero(SPECIES);
+        DoubleVector sums1 = DoubleVector.zero(SPECIES);
+        DoubleVector sums2 = DoubleVector.zero(SPECIES);
+        DoubleVector sums3 = DoubleVector.zero(SPECIES);
+        int upper = SPECIES.loopBound(dimension);
+        int idx = 0;
+        for (; idx < upper; idx += LANES) {
+            DoubleVector target = DoubleVector.fromArray(SPECIES, targets, targetOffset + idx);
+            DoubleVector diff0 = DoubleVector.fromArray(SPECIES, queries, offset0 + idx).sub(target);
+            DoubleVector diff1 = DoubleVector.fromArray(SPECIES, queries, offset1 + idx).sub(target);
+            DoubleVector diff2 = DoubleVector.fromArray(SPECIES, queries, offset2 + idx).sub(target);
+            DoubleVector diff3 = DoubleVector.fromArray(SPECIES, queries, offset3 + idx).sub(target);
+            if (squared) {
+                sums0 = sums0.add(diff0.mul(diff0));
+                sums1 = sums1.add(diff1.mul(diff1));
+                sums2 = sums2.add(diff2.mul(diff2));
+                sums3 = sums3.add(diff3.mul(diff3));
+            } else {
+                sums0 = sums0.add(diff0.abs());
+                sums1 = sums1.add(diff1.abs());
+                sums2 = sums2.add(diff2.abs());
+                sums3 = sums3.add(diff3.abs());
+            }
+        }
+        double total0 = sums0.reduceLanes(VectorOperators.ADD);
+        double total1 = sums1.reduceLanes(VectorOperators.ADD);
+        double total2 = sums2.reduceLanes(VectorOperators.ADD);
+        double total3 = sums3.reduceLanes(VectorOperators.ADD);
+        for (; idx < dimension; idx++) {
+            double target = targets[targetOffset + idx];
+            double diff0 = queries[offset0 + idx] - target;
+            double diff1 = queries[offset1 + idx] - target;
+            double diff2 = queries[offset2 + idx] - target;
+            double diff3 = queries[offset3 + idx] - target;
+            if (squared) {
+                total0 += diff0 * diff0;
+                total1 += diff1 * diff1;
+                total2 += diff2 * diff2;
+                total3 += diff3 * diff3;
+            } else {
+                total0 += Math.abs(diff0);
+                total1 += Math.abs(diff1);
+                total2 += Math.abs(diff2);
+                total3 += Math.abs(diff3);
+            }
+        }
+        out[outOffset] = total0;
+        out[outOffset + numTargets] = total1;
+        out[outOffset + 2 * numTargets] = total2;
+        out[outOffset + 3 * numTargets] = total3;
+    }
+
+    // Helper method to fill a block of query to target distances, four queries at a time, for vectors at least one
+    // vector of doubles wide
+    private static void block(boolean squared, double[] queries, int fromQuery, int toQuery, double[] targets,
+                              int numTargets, int dimension, double[] out) {
+        int q = fromQuery;
+        for (; q + QUERY_BLOCK <= toQuery; q += QUERY_BLOCK) {
+            for (int t = 0; t < numTargets; t++) {
+                blockOfFour(squared, queries, q, targets, t * dimension, dimension, out,
+                        (q - fromQuery) * numTargets + t, numTargets);
+            }
+        }
+        for (; q < toQuery; q++) {
+            for (int t = 0; t < numTargets; t++) {
+                out[(q - fromQuery) * numTargets + t] = squared
+                        ? squared(queries, q * dimension, targets, t * dimension, dimension, Double.POSITIVE_INFINITY)
+                        : manhattan(queries, q * dimension, targets, t * dimension, dimension,
+                        Double.POSITIVE_INFINITY);
+            }
+        }
+    }
+
+    // Class computing the Manhattan distance with SIMD kernels
+    static class Manhattan extends Distance.Manhattan {
+        @Override
+        public double compute(double[] a, int aOffset, double[] b, int bOffset, int dimension, double bound) {
+            if (dimension < LANES) return super.compute(a, aOffset, b, bOffset, dimension, bound);
+            return manhattan(a, aOffset, b, bOffset, dimension, bound);
+        }
+
+        @Override
+        public void computeRows(double[] x, int xOffset, double[] rows, int fromRow, int toRow, int dimension,
+                                double bound, double[] out, int outOffset) {
+            if (dimension < LANES) {
+                super.computeRows(x, xOffset, rows, fromRow, toRow, dimension, bound, out, outOffset);
+                return;
+            }
+            for (int row = fromRow; row < toRow; row++) {
+                out[outOffset + row - fromRow] = manhattan(x, xOffset, rows, row * dimension, dimension, bound);
+            }
+        }
+
+        @Override
+        public void scanRows(double[] x, int xOffset, double[] rows, int fromRow, int toRow, int dimension,
+                             NeighborHeap heap) {
+            if (dimension < LANES) {
+                super.scanRows(x, xOffset, rows, fromRow, toRow, dimension, heap);
+                return;
+            }
+            for (int row = fromRow; row < toRow; row++) {
+                double dist = manhattan(x, xOffset, rows, row * dimension, dimension, heap.worst());
+                if (dist < heap.worst()) heap.offer(dist, row);
+            }
+        }
+
+        @Override
+        public void computeBlock(double[] queries, int fromQuery, int toQuery, double[] targets, int numTargets,
+                                 int dimension, double[] out) {
+            if (dimension < LANES) {
+                super.computeBlock(queries, fromQuery, toQuery, targets, numTargets, dimension, out);
+                return;
+            }
+            block(false, queries, fromQuery, toQuery, targets, numTargets, dimension, out);
+        }
+
+        @Override
+        public String getKernel() {
+            return "simd" + LANES;
+        }
+    }
+
+    // Class computing the squared Euclidean distance with SIMD kernels
+    static class EuclideanSquared extends Distance.EuclideanSquared {
+        @Override
+        public double compute(double[] a, int aOffset, double[] b, int bOffset, int dimension, double bound) {
+            if (dimension < LANES) return super.compute(a, aOffset, b, bOffset, dimension, bound);
+            return squared(a, aOffset, b, bOffset, dimension, bound);
+        }
+
+        @Override
+        public void computeRows(double[] x, int xOffset, double[] rows, int fromRow, int toRow, int dimension,
+                                double bound, double[] out, int outOffset) {
+            if (dimension < LANES) {
+                super.computeRows(x, xOffset, rows, fromRow, toRow, dimension, bound, out, outOffset);
+                return;
+            }
+            for (int row = fromRow; row < toRow; row++) {
+                out[outOffset + row - fromRow] = squared(x, xOffset, rows, row * dimension, dimension, bound);
+            }
+        }
+
+        @Override
+        public void scanRows(double[] x, int xOffset, double[] rows, int fromRow, int toRow, int dimension,
+                             NeighborHeap heap) {
+            if (dimension < LANES) {
+                super.scanRows(x, xOffset, rows, fromRow, toRow, dimension, heap);
+                return;
+            }
+            for (int row = fromRow; row < toRow; row++) {
+                double dist = squared(x, xOffset, rows, row * dimension, dimension, heap.worst());
+                if (dist < heap.worst()) heap.offer(dist, row);
+            }
+        }
+
+        @Override
+        public void computeBlock(double[] queries, int fromQuery, int toQuery, double[] targets, int numTargets,
+                                 int dimension, double[] out) {
+            if (dimension < LANES) {
+                super.computeBlock(queries, fromQuery, toQuery, targets, numTargets, dimension, out);
+                return;
+            }
+            block(true, queries, fromQuery, toQuery, targets, numTargets, dimension, out);
+        }
+
+        @Override
+        public String getKernel() {
+            return "simd" + LANES;
+        }
+    }
+
+}
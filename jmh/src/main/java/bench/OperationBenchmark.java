@@ -0,0 +1,55 @@
+package bench;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Class running the operations of Benchmark.java under JMH, one forked JVM per fork with its own warmup
+// Benchmark and the rest of the program live in the unnamed package, which a named package cannot import, so the
+// operation is looked up reflectively once per trial; the measured calls go straight to it. Select operations with
+// -p operation=knn.predict,nb.train and sizes with -p rows=100000 -p dims=16. For the SIMD kernels, pass
+// -jvmArgsAppend "--add-modules jdk.incubator.vector"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class OperationBenchmark {
+    @Param({"knn.predict", "knn.predictOnData", "nb.train", "nb.predictOnData", "nb.gaussian.train",
+            "nb.gaussian.predictOnData", "kmeans.iteration.manh", "kmeans.iteration.e2", "load.csv", "load.kmeans"})
+    public String operation;  // Name of the operation, as printed by Benchmark
+
+    @Param("20000")
+    public int rows;          // Training rows, and K-Means input rows
+
+    @Param("1000")
+    public int queries;       // Test rows predicted by the KNN and Naive Bayes operations
+
+    @Param("8")
+    public int dims;          // Features per row
+
+    @Param("1")
+    public int threads;       // Threads passed to every parallel code path
+
+    @Param("42")
+    public long seed;         // Random seed of the synthetic data
+
+    private Callable<Long> task;  // Operation being measured
+
+    // Method to generate the synthetic data and prepare the selected operation
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        task = (Callable<Long>) Class.forName("Benchmark")
+                .getMethod("operation", String.class, int.class, int.class, int.class, int.class, long.class)
+                .invoke(null, operation, rows, queries, dims, threads, seed);
+    }
+
+    // Method to run the operation once, handing its result to the blackhole so the JIT cannot drop the work
+    @Benchmark
+    public void run(Blackhole blackhole) throws Exception {
+        blackhole.consume(task.call());
+    }
+}
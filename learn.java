@@ -36,11 +36,9 @@ class Node {
 // Main class for the program
 public class learn {
 
-    // Lists to store training and testing data along with corresponding labels
-    private static final List<List<Double>> trainData = new ArrayList<>();
-    private static final List<String> trainLabels = new ArrayList<>();
-    private static final List<List<Double>> testData = new ArrayList<>();
-    private static final List<String> testLabels = new ArrayList<>();
+    // Datasets to store training and testing data along with corresponding labels
+    private static Dataset trainData = new Dataset();
+    private static Dataset testData = new Dataset();
 
     // Method to print the comparison between actual and predicted labels
     public static void printPredictionComparisons(List<String> testLabels, List<String> predictions) {
@@ -60,43 +58,94 @@ public class learn {
     }
 
     // Method to read CSV file and populate training or testing data and labels
-    private static void readCSV(String filename, boolean isTrain) {
-        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
-            br.lines().forEach(line -> {
-                if (!line.isEmpty()) {
-                    String[] values = line.split(",");
-                    List<Double> row = new ArrayList<>();
-
-                    // Label is in the last column
-                    int lastIndex = values.length - 1;
-
-                    // Storing the label
-                    if (isTrain) trainLabels.add(values[lastIndex]);
-                    else testLabels.add(values[lastIndex]);
-
-                    // Storing the numbers in other columns
-                    for (int i = 0; i < lastIndex; i++) {
-                        row.add(Double.parseDouble(values[i]));
-                    }
-                    if (isTrain) trainData.add(row);
-                    else testData.add(row);
-                }
-            });
+    private static void readCSV(String filename, boolean isTrain, int threads) {
+        try {
+            Stats.Phase phase = Stats.start(isTrain ? "load.train" : "load.test");
+            Dataset loaded = CsvLoader.readCsv(filename, threads);
+            phase.end(loaded.size());
+            if (isTrain) trainData = loaded;
+            else testData = loaded;
         } catch (IOException e) {
             System.out.println("One or more argument file(s) not found. Terminating program.");
             System.exit(1);
         }
     }
 
-    // Method to read KMeans CSV file and return its content as a string
-    public static String readKMeansCSV(String filename) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            StringBuilder inputData = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                inputData.append(line).append("\n");
+    // Class to read a CSV file one row at a time, keeping only the labels of the rows read so far
+    private static class RowReader implements Iterator<double[]>, AutoCloseable {
+        private final BufferedReader reader;
+        private final List<String> labels = new ArrayList<>();
+        private String nextLine;
+
+        // Constructor to open the file and look ahead to the first row
+        public RowReader(String filename) {
+            BufferedReader opened = null;
+            try {
+                opened = new BufferedReader(new FileReader(filename));
+            } catch (IOException e) {
+                System.out.println("One or more argument file(s) not found. Terminating program.");
+                System.exit(1);
+            }
+            this.reader = opened;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLine != null;
+        }
+
+        @Override
+        public double[] next() {
+            if (nextLine == null) throw new NoSuchElementException();
+            String[] values = nextLine.split(",");
+
+            // Label is in the last column
+            int lastIndex = values.length - 1;
+            labels.add(values[lastIndex]);
+
+            double[] row = new double[lastIndex];
+            for (int i = 0; i < lastIndex; i++) {
+                row[i] = Double.parseDouble(values[i]);
             }
-            return inputData.toString();
+            advance();
+            return row;
+        }
+
+        // Getter method to retrieve the labels of the rows read so far
+        public List<String> getLabels() {
+            return labels;
+        }
+
+        // Helper method to read up to the next non-empty line
+        private void advance() {
+            try {
+                do {
+                    nextLine = reader.readLine();
+                } while (nextLine != null && nextLine.isEmpty());
+            } catch (IOException e) {
+                System.out.println("One or more argument file(s) not found. Terminating program.");
+                System.exit(1);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+                // Nothing left to read
+            }
+        }
+    }
+
+    // Method to read KMeans CSV file into a dataset whose labels are the node identities
+    public static Dataset readKMeansCSV(String filename, int threads) {
+        try {
+            Stats.Phase phase = Stats.start("load");
+            Dataset loaded = CsvLoader.readKMeans(filename, threads);
+            phase.end(loaded.size());
+            return loaded;
         } catch (IOException e) {
             System.out.println("One or more argument file(s) not found. Terminating program.");
             System.exit(0);
@@ -104,10 +153,245 @@ public class learn {
         return null;
     }
 
+    // Interface for writing a model to a file
+    private interface ModelWriter {
+        void write(String filename) throws IOException;
+    }
+
+    // Method to save a trained model, stopping the program if the file cannot be written
+    private static void saveModel(String filename, ModelWriter writer) {
+        try {
+            Stats.Phase phase = Stats.start("save");
+            writer.write(filename);
+            phase.end(0);
+        } catch (IOException e) {
+            System.out.println("Model file could not be written. Terminating program.");
+            System.exit(1);
+        }
+    }
+
+    // Method to check the validity of the k and c values
+    private static void checkKC(int k, double c) {
+        if (k < 0) {
+            System.out.println("Error: Number of nearest neighbours \"K\" must be >= 0.");
+            System.exit(1);
+        }
+        if (c < 0) {
+            System.out.println("Error: Laplacian correction \"C\" must be >= 0.");
+            System.exit(1);
+        }
+        if (k > 0 && c > 0) {
+            System.out.println("Error: cannot use both \"K\" and \"C\" in the same algorithm.");
+            System.exit(1);
+        }
+    }
+
+    // Method to train a KNN model on the training data
+    private static KNN trainKNN(int k, KNN.SearchMode searchMode, String distanceFn, int nlist, int nprobe,
+                                QuantizedIndex.Precision precision) {
+        Distance distance = distanceFn.equals("") ? Distance.EUCLIDEAN_SQUARED : Distance.forName(distanceFn);
+        if (distance == null) {
+            System.out.println("Incorrect distance function provided for KNN. Check README for more details.");
+            System.exit(0);
+        }
+        Stats.Phase phase = Stats.start("train");
+        KNN knn = new KNN(k, searchMode, distance, nlist, nprobe, precision);
+        knn.train(trainData);
+        phase.end(trainData.size());
+        return knn;
+    }
+
+    // Method to train a Naive Bayes model on the training data, reporting the size of its tables
+    private static NaiveBayes trainNaiveBayes(double c, boolean verbose, boolean logSpace,
+                                              NaiveBayes.FeatureModel featureModel, int threads) {
+        Stats.Phase phase = Stats.start("train");
+        NaiveBayes naiveBayes = new NaiveBayes(c, verbose, logSpace, featureModel);
+        naiveBayes.train(trainData, threads);
+        phase.end(trainData.size());
+        reportTables(naiveBayes);
+        return naiveBayes;
+    }
+
+    // Method to report the size of a Naive Bayes model's probability tables
+    private static void reportTables(NaiveBayes naiveBayes) {
+        Stats.event("naive_bayes", "feature_model", naiveBayes.getFeatureModel().name().toLowerCase(),
+                "labels", naiveBayes.getNumLabels(), "features", naiveBayes.getNumFeatures(),
+                "distinct_values", naiveBayes.getNumDistinctValues(), "table_entries", naiveBayes.getTableEntries());
+    }
+
+    // Method to run the cross-validation sweep of KNN over kValues, or of Naive Bayes over cValues when kValues is
+    // null, printing every setting's accuracy and metrics followed by the best setting
+    private static void runCrossValidation(CrossValidator validator, int[] kValues, double[] cValues,
+                                           KNN.SearchMode searchMode, String distanceFn, int nlist, int nprobe,
+                                           boolean logSpace, NaiveBayes.FeatureModel featureModel) {
+        Stats.Phase phase = Stats.start("cross_validate");
+        List<CrossValidator.Result> results;
+        if (kValues != null) {
+            Distance distance = distanceFn.equals("") ? Distance.EUCLIDEAN_SQUARED : Distance.forName(distanceFn);
+            if (distance == null) {
+                System.out.println("Incorrect distance function provided for KNN. Check README for more details.");
+                System.exit(0);
+            }
+            results = validator.sweepKNN(kValues, searchMode, distance, nlist, nprobe);
+        } else {
+            results = validator.sweepNaiveBayes(cValues, logSpace, featureModel);
+        }
+        phase.end(trainData.size());
+
+        CrossValidator.Result best = null;
+        for (CrossValidator.Result result : results) {
+            System.out.printf("%s Accuracy=%d/%d (%.4f)%n", result.getSetting(), result.getCorrect(),
+                    result.getTotal(), result.getAccuracy());
+            printMetrics(new TreeMap<>(result.getMetrics()));
+            Stats.event("cv_setting", "setting", result.getSetting(), "accuracy", result.getAccuracy());
+            if (best == null || result.getAccuracy() > best.getAccuracy()) best = result;
+        }
+        System.out.printf("Best %s Accuracy=%.4f%n", best.getSetting(), best.getAccuracy());
+    }
+
+    // Method to load a saved model, stopping the program if the file cannot be read
+    private static ModelFile.Model loadModel(String loadFile, boolean verbose) {
+        try {
+            Stats.Phase phase = Stats.start("load.model");
+            ModelFile.Model model = ModelFile.load(loadFile, verbose);
+            phase.end(0);
+            return model;
+        } catch (IOException e) {
+            System.out.println("One or more argument file(s) not found. Terminating program.");
+            System.exit(1);
+        }
+        return null;
+    }
+
+    // Method to run a prediction server on standard input and output ("stdio") or on a local port
+    private static void runServer(PredictionServer server, String serve) {
+        if (serve.equals("stdio")) {
+            server.serveStdio();
+            return;
+        }
+        try {
+            server.serveSocket(Integer.parseInt(serve));
+        } catch (NumberFormatException e) {
+            System.out.println("Incorrect server address provided. Check README for more details.");
+            System.exit(0);
+        } catch (IOException e) {
+            System.out.println("Server port could not be opened. Terminating program.");
+            System.exit(1);
+        }
+    }
+
+    // Method to load a saved model and run it on the test file: predictions for KNN and Naive Bayes,
+    // cluster assignments for KMeans
+    private static void runSavedModel(String loadFile, String testFile, boolean verbose, boolean stream, int threads) {
+        ModelFile.Model model = loadModel(loadFile, verbose);
+
+        switch (model.getType()) {
+            case KNN -> {
+                readCSV(testFile, false, threads);
+                scoreKNN(model.getKnn(), verbose, threads);
+            }
+            case NAIVE_BAYES -> {
+                boolean streamTest = stream && !DatasetFile.isBinary(testFile);
+                if (!streamTest) readCSV(testFile, false, threads);
+                reportTables(model.getNaiveBayes());
+                scoreNaiveBayes(model.getNaiveBayes(), testFile, streamTest, threads);
+            }
+            case KMEANS -> KMeans.assignClusters(readKMeansCSV(testFile, threads), model.getCentroids());
+        }
+    }
+
+    // Method to predict the test set with a trained KNN model and print the metrics
+    private static void scoreKNN(KNN knn, boolean verbose, int threads) {
+        List<String> testLabels = testData.getLabelList();
+        Stats.Phase phase = Stats.start("predict");
+        long evaluationsBefore = knn.getDistanceEvaluations();
+        List<String> predictions = knn.predictOnData(testData, threads);
+        phase.end(predictions.size());
+        long evaluations = knn.getDistanceEvaluations() - evaluationsBefore;
+        Stats.event("knn", "mode", knn.getMode().name().toLowerCase(),
+                "precision", knn.getPrecision() == null ? "float64" : knn.getPrecision().name().toLowerCase(),
+                "kernel", knn.getDistance().getKernel(),
+                "queries", predictions.size(),
+                "distance_evaluations", evaluations,
+                "evaluations_per_query", predictions.isEmpty() ? 0.0 : (double) evaluations / predictions.size());
+        printKNNResults(testLabels, predictions, verbose);
+        // Report how closely the approximate search tracks the exact neighbours
+        if (knn.getMode() == KNN.SearchMode.IVF) {
+            KNN.RecallReport report = knn.measureRecall(testData);
+            System.out.printf("Recall@%d=%.4f Search=%.1fus Exact=%.1fus%n",
+                    knn.getK(), report.getRecall(), report.getSearchMicros(), report.getExactMicros());
+        }
+    }
+
+    // Method to print the KNN predictions when verbose, followed by the metrics
+    private static void printKNNResults(List<String> testLabels, List<String> predictions, boolean verbose) {
+        Stats.Phase phase = Stats.start("evaluate");
+        if (verbose) {
+            printPredictionComparisons(testLabels, predictions);
+        }
+        Map<String, Evaluator.LabelMetrics> metricsDict = Evaluator.evaluateMetrics(testLabels, predictions);
+        printMetrics(metricsDict);
+        phase.end(predictions.size());
+    }
+
+    // Method to train KNN on worker processes that each hold one shard of the training file, then predict the
+    // test set by merging their nearest neighbours and print the metrics
+    private static void runShardedKNN(String trainFile, String testFile, int k, int shards, String shardHeap,
+                                      KNN.SearchMode searchMode, String distanceFn, int nlist, int nprobe,
+                                      boolean verbose, int threads) {
+        Distance distance = distanceFn.equals("") ? Distance.EUCLIDEAN_SQUARED : Distance.forName(distanceFn);
+        if (distance == null) {
+            System.out.println("Incorrect distance function provided for KNN. Check README for more details.");
+            System.exit(0);
+        }
+        List<String> predictions = null;
+        try (ShardedKNN knn = new ShardedKNN(shards, k, searchMode, distance, nlist, nprobe, shardHeap)) {
+            Stats.Phase phase = Stats.start("train");
+            knn.train(trainFile);
+            phase.end(knn.size());
+            readCSV(testFile, false, threads);
+            phase = Stats.start("predict");
+            predictions = knn.predictOnData(testData);
+            phase.end(predictions.size());
+        } catch (FileNotFoundException e) {
+            System.out.println("One or more argument file(s) not found. Terminating program.");
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("Sharded KNN failed: " + e.getMessage() + ". Terminating program.");
+            System.exit(1);
+        }
+        printKNNResults(testData.getLabelList(), predictions, verbose);
+    }
+
+    // Method to predict the test set with a trained Naive Bayes model and print the metrics
+    private static void scoreNaiveBayes(NaiveBayes naiveBayes, String testFile, boolean streamTest, int threads) {
+        List<String> testLabels = testData.getLabelList();
+        List<String> predictions;
+        // A streamed test file is read while predicting, so its loading is part of this phase
+        Stats.Phase phase = Stats.start("predict");
+        if (streamTest) {
+            // Predict each test row as it is read instead of loading the whole file
+            predictions = new ArrayList<>();
+            try (RowReader reader = new RowReader(testFile)) {
+                naiveBayes.predictStream(reader).forEachRemaining(predictions::add);
+                testLabels = reader.getLabels();
+            }
+        } else {
+            predictions = naiveBayes.predictOnData(testData, threads);
+        }
+        phase.end(predictions.size());
+
+        phase = Stats.start("evaluate");
+        Map<String, Evaluator.LabelMetrics> metricsDict = Evaluator.evaluateMetrics(testLabels, predictions);
+        Map<String, Evaluator.LabelMetrics> sortedMetrics = new TreeMap<>(metricsDict);
+        printMetrics(sortedMetrics);
+        phase.end(predictions.size());
+    }
+
     // Driver method of the program
     public static void main(String[] args) {
         // Check if the correct number of command line arguments is provided
-        if (args.length < 4) {
+        if (args.length < 4 && !Arrays.asList(args).contains("-convert") && !Arrays.asList(args).contains("-serve")) {
             System.out.println("Incorrect number of arguments passed. Check README for more details.");
             System.exit(1);
         }
@@ -117,19 +401,121 @@ public class learn {
         String testFile = "";
         int k = 0;
         double c = 0;
+        int[] kValues = {0};
+        double[] cValues = {0};
+        int folds = 0;
+        int shards = 0;
+        String shardHeap = "";
         String distanceFn = "";
         List<String> centroids = new ArrayList<>();
         boolean verbose = false;
+        boolean stats = false;
+        KNN.SearchMode searchMode = KNN.SearchMode.AUTO;
+        QuantizedIndex.Precision precision = null;
+        int threads = 1;
+        int nlist = 0;
+        int nprobe = 1;
+        boolean logSpace = false;
+        NaiveBayes.FeatureModel featureModel = NaiveBayes.FeatureModel.CATEGORICAL;
+        boolean stream = false;
+        boolean accelerated = false;
+        int batchSize = 0;
+        int numBatches = 100;
+        boolean assign = false;
+        int clusters = 0;
+        long seed = 42;
+        KMeansSeeder.Method seedMethod = KMeansSeeder.Method.PLUS_PLUS;
+        String convertInput = "";
+        String convertOutput = "";
+        CsvLoader.Format inputFormat = CsvLoader.Format.CSV;
+        String saveFile = "";
+        String loadFile = "";
+        String serve = "";
+        int maxBatch = 64;
+        long maxWait = 1000;
 
         // Parse command line arguments
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "-train" -> trainFile = args[++i];
                 case "-test" -> testFile = args[++i];
-                case "-k" -> k = Integer.parseInt(args[++i]);
-                case "-c" -> c = Double.parseDouble(args[++i]);
+                case "-k" -> {
+                    kValues = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    k = Arrays.stream(kValues).max().getAsInt();
+                }
+                case "-c" -> {
+                    cValues = Arrays.stream(args[++i].split(",")).mapToDouble(Double::parseDouble).toArray();
+                    c = Arrays.stream(cValues).max().getAsDouble();
+                }
+                case "-cv" -> folds = Integer.parseInt(args[++i]);
+                case "-shards" -> shards = Integer.parseInt(args[++i]);
+                case "-shardheap" -> shardHeap = args[++i];
                 case "-d" -> distanceFn = args[++i];
                 case "-v", "-verbose" -> verbose = true;
+                case "-stats" -> stats = true;
+                case "-threads" -> threads = Integer.parseInt(args[++i]);
+                case "-nlist" -> nlist = Integer.parseInt(args[++i]);
+                case "-nprobe" -> nprobe = Integer.parseInt(args[++i]);
+                case "-log" -> logSpace = true;
+                case "-gaussian" -> featureModel = NaiveBayes.FeatureModel.GAUSSIAN;
+                case "-stream" -> stream = true;
+                case "-accel" -> accelerated = true;
+                case "-batch" -> batchSize = Integer.parseInt(args[++i]);
+                case "-batches" -> numBatches = Integer.parseInt(args[++i]);
+                case "-assign" -> assign = true;
+                case "-clusters" -> clusters = Integer.parseInt(args[++i]);
+                case "-seed" -> seed = Long.parseLong(args[++i]);
+                case "-save" -> saveFile = args[++i];
+                case "-load" -> loadFile = args[++i];
+                case "-serve" -> serve = args[++i];
+                case "-maxbatch" -> maxBatch = Integer.parseInt(args[++i]);
+                case "-maxwait" -> maxWait = Long.parseLong(args[++i]);
+                case "-convert" -> {
+                    convertInput = args[++i];
+                    convertOutput = args[++i];
+                }
+                case "-format" -> {
+                    switch (args[++i]) {
+                        case "csv" -> inputFormat = CsvLoader.Format.CSV;
+                        case "kmeans" -> inputFormat = CsvLoader.Format.KMEANS;
+                        default -> {
+                            System.out.println("Incorrect input format provided for conversion. Check README for more details.");
+                            System.exit(0);
+                        }
+                    }
+                }
+                case "-init" -> {
+                    switch (args[++i]) {
+                        case "kmeans++" -> seedMethod = KMeansSeeder.Method.PLUS_PLUS;
+                        case "parallel" -> seedMethod = KMeansSeeder.Method.PARALLEL;
+                        default -> {
+                            System.out.println("Incorrect seeding method provided for K-Means. Check README for more details.");
+                            System.exit(0);
+                        }
+                    }
+                }
+                case "-index" -> {
+                    switch (args[++i]) {
+                        case "linear" -> searchMode = KNN.SearchMode.LINEAR;
+                        case "kdtree" -> searchMode = KNN.SearchMode.KDTREE;
+                        case "auto" -> searchMode = KNN.SearchMode.AUTO;
+                        case "ivf" -> searchMode = KNN.SearchMode.IVF;
+                        default -> {
+                            System.out.println("Incorrect index mode provided for KNN. Check README for more details.");
+                            System.exit(0);
+                        }
+                    }
+                }
+                case "-quantize" -> {
+                    switch (args[++i]) {
+                        case "float32" -> precision = QuantizedIndex.Precision.FLOAT32;
+                        case "int8" -> precision = QuantizedIndex.Precision.INT8;
+                        default -> {
+                            System.out.println("Incorrect precision provided for KNN. Check README for more details.");
+                            System.exit(0);
+                        }
+                    }
+                }
                 default -> {
                     if (args[i].contains(",")) centroids.add(args[i]);
                     else {
@@ -140,55 +526,155 @@ public class learn {
             }
         }
 
-        // Check if K-Means is specified
-        if (!distanceFn.equals("")) {
-            // Check if centroids are provided for K-Means
-            if (centroids.isEmpty()) {
+        // Write run metrics as JSON lines to standard error, keeping standard output unchanged
+        if (stats) Stats.enable(System.err);
+
+        // Compressed scans replace the linear scan of a single in-memory KNN model
+        if (precision != null && (searchMode == KNN.SearchMode.KDTREE || searchMode == KNN.SearchMode.IVF
+                || folds > 0 || shards > 0)) {
+            System.out.println("-quantize cannot be used with -index kdtree/ivf, -cv or -shards. Check README for more details.");
+            System.exit(0);
+        }
+
+        // Convert a text input file into a binary dataset file that later runs load without parsing
+        if (!convertInput.equals("")) {
+            try {
+                Stats.Phase phase = Stats.start("convert");
+                Dataset converted = DatasetFile.convert(convertInput, convertOutput, inputFormat, threads);
+                phase.end(converted.size());
+                System.out.println("Converted " + converted.size() + " rows with " + converted.getNumFeatures()
+                        + " features and " + converted.getNumLabels() + " labels into " + convertOutput);
+            } catch (IOException e) {
+                System.out.println("One or more argument file(s) not found. Terminating program.");
+                System.exit(1);
+            }
+            return;
+        }
+
+        // Lists of k or c values are only swept by cross-validation
+        if ((kValues.length > 1 || cValues.length > 1) && folds == 0) {
+            System.out.println("Lists of k or c values can only be used with -cv. Check README for more details.");
+            System.exit(0);
+        }
+
+        // Cross-validate KNN or Naive Bayes on the training file over every k or c value
+        if (folds > 0) {
+            checkKC(Arrays.stream(kValues).min().getAsInt(), Arrays.stream(cValues).min().getAsDouble());
+            checkKC(k, c);
+            readCSV(trainFile, true, threads);
+            if (folds < 2 || folds > trainData.size()) {
+                System.out.println("Number of folds must be between 2 and the number of training rows.");
+                System.exit(0);
+            }
+            runCrossValidation(new CrossValidator(trainData, folds, seed, threads), k > 0 ? kValues : null, cValues,
+                    searchMode, distanceFn, nlist, nprobe, logSpace, featureModel);
+            return;
+        }
+
+        // Keep a KNN or Naive Bayes model in memory and answer prediction requests until the input ends
+        if (!serve.equals("")) {
+            PredictionServer.Predictor predictor;
+            int width;
+            if (!loadFile.equals("")) {
+                ModelFile.Model model = loadModel(loadFile, false);
+                if (model.getType() == ModelFile.Type.KMEANS) {
+                    System.out.println("Only KNN and Naive-Bayes models can be served. Check README for more details.");
+                    System.exit(0);
+                }
+                boolean isKnn = model.getType() == ModelFile.Type.KNN;
+                NaiveBayes naiveBayes = model.getNaiveBayes();
+                // Naive Bayes traces and warnings would land between the responses on standard output
+                predictor = isKnn ? model.getKnn()::predictOnData
+                        : (batch, batchThreads) -> naiveBayes.predictOnData(batch, batchThreads, false);
+                width = isKnn ? model.getKnn().getNumFeatures() : model.getNaiveBayes().getNumFeatures();
+            } else {
+                checkKC(k, c);
+                readCSV(trainFile, true, threads);
+                if (k > 0) {
+                    KNN knn = trainKNN(k, searchMode, distanceFn, nlist, nprobe, precision);
+                    predictor = knn::predictOnData;
+                    width = knn.getNumFeatures();
+                } else {
+                    NaiveBayes naiveBayes = trainNaiveBayes(c, false, logSpace, featureModel, threads);
+                    predictor = (batch, batchThreads) -> naiveBayes.predictOnData(batch, batchThreads, false);
+                    width = naiveBayes.getNumFeatures();
+                }
+            }
+            runServer(new PredictionServer(predictor, width, maxBatch, maxWait, threads), serve);
+            return;
+        }
+
+        // Predict with a saved model instead of training one
+        if (!loadFile.equals("")) {
+            runSavedModel(loadFile, testFile, verbose, stream, threads);
+            return;
+        }
+
+        // Check if K-Means is specified (a distance function without a test file)
+        if (!distanceFn.equals("") && testFile.equals("")) {
+            // Check that exactly one of centroids or a number of clusters to seed is provided for K-Means
+            if (centroids.isEmpty() == (clusters <= 0)) {
                 System.out.println("Incorrect centroids provided for K-Means. Check README for more details.");
                 System.exit(0);
             }
+            // Stream the file in batches instead of loading it when a batch size is given, seeding from the first batch
+            if (batchSize > 0) {
+                if (DatasetFile.isBinary(trainFile)) {
+                    System.out.println("Mini-batch K-Means reads text input files only. Check README for more details.");
+                    System.exit(0);
+                }
+                Stats.Phase phase = Stats.start("seed");
+                List<Node> centroidList = clusters > 0
+                        ? KMeans.seedCentroids(MiniBatchKMeans.readSample(trainFile, batchSize), clusters, distanceFn,
+                                seedMethod, seed, threads)
+                        : KMeans.setCentroids(centroids);
+                phase.end(0);
+                phase = Stats.start("cluster");
+                MiniBatchKMeans.runMiniBatch(trainFile, centroidList, distanceFn, batchSize, numBatches, assign);
+                phase.end((long) batchSize * numBatches);
+                KMeans.Centroids model = new KMeans.Centroids(distanceFn, centroidList);
+                if (!saveFile.equals("")) saveModel(saveFile, file -> ModelFile.save(model, file));
+                return;
+            }
             // Read KMeans CSV file, set nodes and centroids, perform sanity check, and run K-Means
-            String kmeansData = readKMeansCSV(trainFile);
-            List<Node> kmeansNodes = KMeans.setNodes(kmeansData);
-            List<Node> centroidList = KMeans.setCentroids(centroids);
+            Dataset kmeansNodes = readKMeansCSV(trainFile, threads);
+            Stats.Phase phase = Stats.start("seed");
+            List<Node> centroidList = clusters > 0
+                    ? KMeans.seedCentroids(kmeansNodes, clusters, distanceFn, seedMethod, seed, threads)
+                    : KMeans.setCentroids(centroids);
+            phase.end(0);
             KMeans.sanityCheck(kmeansNodes, centroidList);
-            KMeans.runKMeans(kmeansNodes, centroidList, distanceFn);
+            KMeans.runKMeans(kmeansNodes, centroidList, distanceFn, threads, accelerated, clusters > 0 || verbose);
+            KMeans.Centroids model = new KMeans.Centroids(distanceFn, centroidList);
+            if (!saveFile.equals("")) saveModel(saveFile, file -> ModelFile.save(model, file));
         } else {
-            // Check validity of k, c values
-            if (k < 0) {
-                System.out.println("Error: Number of nearest neighbours \"K\" must be >= 0.");
-                System.exit(1);
-            }
-            if (c < 0) {
-                System.out.println("Error: Laplacian correction \"C\" must be >= 0.");
-                System.exit(1);
-            }
-            if (k > 0 && c > 0) {
-                System.out.println("Error: cannot use both \"K\" and \"C\" in the same algorithm.");
-                System.exit(1);
+            checkKC(k, c);
+
+            // Spread the KNN training data over worker processes instead of loading it into this one
+            if (shards > 0) {
+                if (k == 0 || !saveFile.equals("")) {
+                    System.out.println("Sharding is only available for KNN without -save. Check README for more details.");
+                    System.exit(0);
+                }
+                runShardedKNN(trainFile, testFile, k, shards, shardHeap, searchMode, distanceFn, nlist, nprobe,
+                        verbose, threads);
+                return;
             }
 
-            // Read training and testing data
-            readCSV(trainFile, true);
-            readCSV(testFile, false);
+            // Read training data, and testing data unless Naive Bayes streams it
+            readCSV(trainFile, true, threads);
+            boolean streamTest = stream && k == 0 && !DatasetFile.isBinary(testFile);
+            if (!streamTest) readCSV(testFile, false, threads);
 
             // Perform KNN or Naive Bayes based on the specified algorithm
             if (k > 0) {
-                KNN knn = new KNN(k);
-                knn.train(trainData, trainLabels);
-                List<String> predictions = knn.predictOnData(testData);
-                if (verbose) {
-                    printPredictionComparisons(testLabels, predictions);
-                }
-                Map<String, Evaluator.LabelMetrics> metricsDict = Evaluator.evaluateMetrics(testLabels, predictions);
-                printMetrics(metricsDict);
+                KNN knn = trainKNN(k, searchMode, distanceFn, nlist, nprobe, precision);
+                if (!saveFile.equals("")) saveModel(saveFile, file -> ModelFile.save(knn, file));
+                scoreKNN(knn, verbose, threads);
             } else {
-                NaiveBayes naiveBayes = new NaiveBayes(c, verbose);
-                naiveBayes.train(trainData, trainLabels);
-                List<String> predictions = naiveBayes.predictOnData(testData, testLabels);
-                Map<String, Evaluator.LabelMetrics> metricsDict = Evaluator.evaluateMetrics(testLabels, predictions);
-                Map<String, Evaluator.LabelMetrics> sortedMetrics = new TreeMap<>(metricsDict);
-                printMetrics(sortedMetrics);
+                NaiveBayes naiveBayes = trainNaiveBayes(c, verbose, logSpace, featureModel, threads);
+                if (!saveFile.equals("")) saveModel(saveFile, file -> ModelFile.save(naiveBayes, file));
+                scoreNaiveBayes(naiveBayes, testFile, streamTest, threads);
             }
         }
     }